@@ -0,0 +1,8 @@
+/**
+ * Told about the outcome of each announce of an {@link AnnounceScheduler.AnnounceTarget}.
+ */
+public interface AnnounceListener {
+    void announced(AnnounceScheduler.AnnounceTarget target);
+
+    void announceFailed(AnnounceScheduler.AnnounceTarget target, Status status);
+}
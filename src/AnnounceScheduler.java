@@ -0,0 +1,183 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Re-announces every (torrent, tracker) pair at the interval its tracker asked for. Due times get
+ * up to 10% jitter and are rounded up to a coalescing window, so announces to the same tracker that
+ * fall into one window share a single timer and go out together (and share one UDP connect).
+ * Timers live on the selector threads' {@link TimerWheel}s, one per (tracker, window) instead of
+ * one per pair. Torrent state changes are announced right away with STOPPED or COMPLETED.
+ */
+public class AnnounceScheduler {
+    private static final long COALESCE_WINDOW_MILLIS = 5_000;
+    private static final double JITTER = 0.10;
+    private static final int DEFAULT_INTERVAL_SECONDS = 1800;
+    //retry delay after a tracker failed to answer an announce
+    private static final int RETRY_INTERVAL_SECONDS = 300;
+
+    private static AnnounceScheduler instance;
+
+    /**
+     * One torrent on one tracker.
+     */
+    public interface AnnounceTarget {
+        byte[] infoHash();
+
+        //announces due in the same window are grouped by this key
+        Object trackerKey();
+
+        void announce(TrackerEvent event) throws IOException;
+    }
+
+    private record BucketKey(Object trackerKey, long window) {
+    }
+
+    private final Random random = new Random();
+    //all state guarded by 'this'
+    private final Map<BucketKey, List<AnnounceTarget>> buckets = new HashMap<>();
+    private final Map<AnnounceTarget, BucketKey> scheduled = new HashMap<>();
+    private final Map<BencodeString, List<AnnounceTarget>> byTorrent = new HashMap<>();
+
+    public static synchronized AnnounceScheduler getInstance() {
+        if (instance == null) {
+            instance = new AnnounceScheduler();
+        }
+        return instance;
+    }
+
+    /**
+     * Sends the STARTED announce and keeps re-announcing from then on.
+     */
+    public void start(AnnounceTarget target) throws IOException {
+        synchronized (this) {
+            List<AnnounceTarget> targets = byTorrent.computeIfAbsent(BencodeString.of(target.infoHash()), hash -> new ArrayList<>());
+            if (!targets.contains(target)) {
+                targets.add(target);
+            }
+        }
+        target.announce(TrackerEvent.STARTED);
+    }
+
+    /**
+     * Schedules the next regular announce after a reply. The tracker's min interval is a floor,
+     * jitter only ever delays the announce.
+     */
+    public void announced(AnnounceTarget target, int intervalSeconds, int minIntervalSeconds) throws IOException {
+        int interval = intervalSeconds > 0 ? intervalSeconds : DEFAULT_INTERVAL_SECONDS;
+        long delay = Math.max(interval, minIntervalSeconds) * 1000L;
+        schedule(target, delay + (long) (delay * JITTER * random.nextDouble()));
+    }
+
+    /**
+     * Schedules a retry after the tracker did not answer.
+     */
+    public void failed(AnnounceTarget target) throws IOException {
+        schedule(target, RETRY_INTERVAL_SECONDS * 1000L);
+    }
+
+    /**
+     * The torrent finished downloading: tells every tracker now, regular announces continue.
+     */
+    public void completed(byte[] infoHash) {
+        for (AnnounceTarget target : targets(infoHash, false)) {
+            announce(target, TrackerEvent.COMPLETED);
+        }
+    }
+
+    /**
+     * The torrent was stopped: cancels its announces and tells every tracker.
+     */
+    public void stopped(byte[] infoHash) {
+        for (AnnounceTarget target : targets(infoHash, true)) {
+            synchronized (this) {
+                unschedule(target);
+            }
+            announce(target, TrackerEvent.STOPPED);
+        }
+    }
+
+    /**
+     * Stops re-announcing to this one tracker without announcing anything.
+     */
+    public synchronized void remove(AnnounceTarget target) {
+        unschedule(target);
+        List<AnnounceTarget> targets = byTorrent.get(BencodeString.of(target.infoHash()));
+        if (targets != null) {
+            targets.remove(target);
+        }
+    }
+
+    public synchronized int scheduledCount() {
+        return scheduled.size();
+    }
+
+    private synchronized List<AnnounceTarget> targets(byte[] infoHash, boolean remove) {
+        BencodeString key = BencodeString.of(infoHash);
+        List<AnnounceTarget> targets = remove ? byTorrent.remove(key) : byTorrent.get(key);
+        return targets == null ? List.of() : new ArrayList<>(targets);
+    }
+
+    private void schedule(AnnounceTarget target, long delayMillis) throws IOException {
+        long due = System.currentTimeMillis() + delayMillis;
+        //round up so coalescing never announces before the interval
+        BucketKey key = new BucketKey(target.trackerKey(), (due + COALESCE_WINDOW_MILLIS - 1) / COALESCE_WINDOW_MILLIS);
+        boolean newBucket;
+        synchronized (this) {
+            List<AnnounceTarget> targets = byTorrent.get(BencodeString.of(target.infoHash()));
+            if (targets == null || !targets.contains(target)) {
+                return; //stopped or removed while the announce was in flight
+            }
+            unschedule(target);
+            List<AnnounceTarget> bucket = buckets.get(key);
+            newBucket = bucket == null;
+            if (newBucket) {
+                bucket = new ArrayList<>();
+                buckets.put(key, bucket);
+            }
+            bucket.add(target);
+            scheduled.put(target, key);
+        }
+        if (newBucket) {
+            long delay = key.window() * COALESCE_WINDOW_MILLIS - System.currentTimeMillis();
+            SelectorManager.getInstance().schedule(delay, () -> fire(key));
+        }
+    }
+
+    private void unschedule(AnnounceTarget target) {
+        BucketKey key = scheduled.remove(target);
+        if (key != null) {
+            List<AnnounceTarget> bucket = buckets.get(key);
+            if (bucket != null) {
+                bucket.remove(target);
+            }
+        }
+    }
+
+    private void fire(BucketKey key) {
+        List<AnnounceTarget> due;
+        synchronized (this) {
+            due = buckets.remove(key);
+            if (due == null) {
+                return;
+            }
+            for (AnnounceTarget target : due) {
+                scheduled.remove(target);
+            }
+        }
+        for (AnnounceTarget target : due) {
+            announce(target, TrackerEvent.NONE);
+        }
+    }
+
+    private static void announce(AnnounceTarget target, TrackerEvent event) {
+        try {
+            target.announce(event);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Failed to announce " + event.getStringValue() + ": " + e.getMessage());
+        }
+    }
+}
@@ -1,5 +1,6 @@
 import java.io.*;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
@@ -7,126 +8,79 @@ import java.util.stream.Collectors;
 
 public class Bencode {
 
-    private static Object decode(byte[] data, Pointer p) {
-        return switch (data[p.value]) {
-            case 'i' -> decodeLong(data, p);
-            case 'l' -> decodeList(data, p);
-            case 'd' -> decodeMap(data, p);
-            case '1', '2', '3', '4', '5', '6', '7', '8', '9', '0' -> decodeString(data, p);
-            default -> throw new IllegalArgumentException("Invalid Bencode");
-        };
-    }
-
-    private static String decodeString(byte[] data, Pointer p) {
-        StringBuilder builder = new StringBuilder();
-        while (data[p.value] != ':') {
-            if (!Character.isDigit(data[p.value])) {
-                throw new IllegalArgumentException("Invalid length prefix");
-            }
-            builder.append((char) data[p.value]);
-            p.value++;
-        }
-        p.value++; // skip ':'
-
-        int length = Integer.parseInt(builder.toString());
-        if (p.value + length > data.length) {
-            throw new IllegalArgumentException("String length exceeds data bound");
-        }
-        String result = new String(data, p.value, length, StandardCharsets.ISO_8859_1);
-        p.value += length;
-        return result;
-    }
-
-    private static Long decodeLong(byte[] data, Pointer p) {
-        p.value++; // skip 'i'
-        StringBuilder builder = new StringBuilder();
-        while (data[p.value] != 'e') {
-            if (!Character.isDigit(data[p.value])) {
-                throw new IllegalArgumentException("Invalid bencoded number");
-            }
-            builder.append((char) data[p.value]);
-            p.value++;
-        }
-        p.value++; // skip 'e'
-        return Long.parseLong(builder.toString());
+    public static Object decode(byte[] data) {
+        return BencodeDecoder.decode(ByteBuffer.wrap(data));
     }
 
-    private static List<Object> decodeList(byte[] data, Pointer p) {
-        p.value++; // skip 'l'
-        List<Object> list = new ArrayList<>();
-        while (data[p.value] != 'e') {
-            list.add(decode(data, p));
-        }
-        p.value++; // skip 'e'
-        return list;
+    public static Object decode(ByteBuffer data) {
+        return BencodeDecoder.decode(data);
     }
 
-    private static Map<String, Object> decodeMap(byte[] data, Pointer p) {
-        p.value++; // skip 'd'
-        Map<String, Object> map = new HashMap<>();
-        while (data[p.value] != 'e') {
-            String key = (String) decode(data, p);
-            Object value = decode(data, p);
-            map.put(key, value);
+    public static TorrentMetaData parse(String path) {
+        try {
+            return parse(BencodeDecoder.map(Path.of(path)));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-        p.value++; // skip 'e'
-        return map;
-    }
-
-
-    public static Object decode(byte[] data) {
-        return decode(data, new Pointer(0));
     }
 
-    public static TorrentMetaData parse(String path) {
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(path))) {
-            var data = bis.readAllBytes();
-
-            var decodedData = (Map<?, ?>) decode(data);
+    public static TorrentMetaData parse(ByteBuffer data) {
+        try {
+            BencodeReader reader = new BencodeReader(data);
+            if (reader.next() != BencodeReader.Token.DICT_START) {
+                throw new BencodeException("Torrent file is not a dictionary");
+            }
 
+            //decode the top level, remembering where the raw info dictionary lives
+            Map<String, Object> decodedData = new HashMap<>();
+            Info info = null;
+            byte[] infoHash = null;
+            while (reader.next() == BencodeReader.Token.KEY) {
+                String key = reader.text();
+                if (key.equals("info")) {
+                    int start = reader.position();
+                    info = parseInfo(reader);
+                    infoHash = infoHash(data.slice(start, reader.position() - start));
+                } else {
+                    decodedData.put(key, reader.readValue());
+                }
+            }
+            if (info == null) {
+                throw new BencodeException("Torrent file has no info dictionary");
+            }
 
-            //get info
+            //check if single file mode or multiple file mode
             TorrentMetaData.SingleModeInfo singleModeInfo = null;
             TorrentMetaData.MultiModeInfo multiModeInfo = null;
-            var infoDictionary = (Map<?, ?>) decodedData.get("info");
-
-            //check if single file mode or multiple file mode
-            if (infoDictionary.get("files") == null) {
+            if (info.files() == null) {
                 //single file mode
-                singleModeInfo = new TorrentMetaData.SingleModeInfo(
-                        (String) infoDictionary.get("name"),
-                        (long) infoDictionary.get("length")
-                );
+                singleModeInfo = new TorrentMetaData.SingleModeInfo(info.name(), info.length());
             } else {
                 //multiple file mode
-                var listFile = (List<Map<?, ?>>) infoDictionary.get("files");
-                var files = listFile.stream()
-                        .map(fileMap -> new TorrentMetaData.MultiModeInfo.File(
-                                (long) fileMap.get("length"),
-                                // Assuming path is a List<String> and we take the first element
-                                ((List<String>) fileMap.get("path")).get(0)
-                        ))
-                        .collect(Collectors.toList());
-
-                multiModeInfo = new TorrentMetaData.MultiModeInfo(
-                        (String) infoDictionary.get("name"),
-                        files
-                );
+                multiModeInfo = new TorrentMetaData.MultiModeInfo(info.name(), info.files());
             }
 
-
-            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
-            byte[] infoHash = sha1.digest(encode(infoDictionary));
             //get metadata
-            String announce = (String) decodedData.get("announce");
-            List<List<String>> announceList = (List<List<String>>) (List<?>) decodedData.get("announce-list");
+            String announce = text(decodedData.get("announce"));
+            List<List<String>> announceList = null;
+            if (decodedData.get("announce-list") instanceof List<?> tiers) {
+                announceList = new ArrayList<>();
+                for (Object tier : tiers) {
+                    if (!(tier instanceof List<?> urls)) {
+                        throw new BencodeException("announce-list tier is not a list");
+                    }
+                    for (Object url : urls) {
+                        if (!(url instanceof BencodeString)) {
+                            throw new BencodeException("announce-list entry is not a string");
+                        }
+                    }
+                    announceList.add(urls.stream().map(Bencode::text).collect(Collectors.toList()));
+                }
+            }
             Long creationDate = (Long) decodedData.get("creation date");
-            String comment = (String) decodedData.get("comment");
-            String createdBy = (String) decodedData.get("created by");
-            String encoding = (String) decodedData.get("encoding");
-            Long pieceLength = (Long) infoDictionary.get("piece length");
-            byte[] pieces = ((String) infoDictionary.get("pieces")).getBytes();
-            boolean isPrivate = false;
+            String comment = text(decodedData.get("comment"));
+            String createdBy = text(decodedData.get("created by"));
+            String encoding = text(decodedData.get("encoding"));
 
 
             return new TorrentMetaData(announce,
@@ -136,98 +90,79 @@ public class Bencode {
                     createdBy,
                     encoding,
                     infoHash,
-                    pieceLength,
-                    pieces,
-                    isPrivate,
+                    info.pieceLength(),
+                    info.pieces(),
+                    info.isPrivate(),
                     singleModeInfo,
                     multiModeInfo);
 
-        } catch (IOException | NoSuchAlgorithmException | ClassCastException e) {
+        } catch (ClassCastException e) {
             throw new RuntimeException(e);
         }
     }
 
-    public static byte[] encode(Object data) {
-        return switch (data) {
-            case String s -> encodeString(s);
-            case Number n -> encodeInteger(n.longValue());
-            case List<?> list -> encodeList(list);
-            case Map<?, ?> map -> encodeMap(map);
-            default ->
-                    throw new IllegalArgumentException("Invalid torrent format! Only accept String, Number, List and Map");
-        };
+    //fields of the info dictionary, the file list is indexed instead of decoded
+    private record Info(String name, long length, long pieceLength, PieceHashTable pieces,
+                        boolean isPrivate, FileIndex files) {
     }
 
-    private static byte[] encodeString(String s) {
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        try {
-            output.write(String.valueOf(s.length()).getBytes());
-            output.write(':');
-            output.write(s.getBytes(StandardCharsets.UTF_8));
-            return output.toByteArray();
-        } catch (IOException e) {
-            throw new BencodeException("Failed to encode string", e);
+    private static Info parseInfo(BencodeReader reader) {
+        if (reader.next() != BencodeReader.Token.DICT_START) {
+            throw new BencodeException("Info is not a dictionary");
         }
-    }
-
-    private static byte[] encodeInteger(long l) {
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        try {
-            output.write('i');
-            output.write(String.valueOf(l).getBytes());
-            output.write('e');
-            return output.toByteArray();
-        } catch (IOException e) {
-            throw new BencodeException("Failed to encode integer", e);
+        String name = null;
+        long length = 0;
+        long pieceLength = 0;
+        PieceHashTable pieces = null;
+        boolean isPrivate = false;
+        FileIndex files = null;
+        while (reader.next() == BencodeReader.Token.KEY) {
+            if (reader.textEquals("name")) {
+                name = reader.readText();
+            } else if (reader.textEquals("length")) {
+                length = reader.readLong();
+            } else if (reader.textEquals("piece length")) {
+                pieceLength = reader.readLong();
+            } else if (reader.textEquals("pieces")) {
+                pieces = PieceHashTable.of(reader.readBytes());
+            } else if (reader.textEquals("private")) {
+                isPrivate = reader.readLong() == 1;
+            } else if (reader.textEquals("files")) {
+                files = FileIndex.read(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        if (pieces == null) {
+            throw new BencodeException("Info dictionary has no pieces");
         }
+        return new Info(name, length, pieceLength, pieces, isPrivate, files);
     }
 
-    private static byte[] encodeList(List<?> list) {
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
+    /**
+     * SHA-1 over the exact bytes of a bencoded info dictionary, as they appear in the .torrent file.
+     * Re-encoding a decoded dictionary is not equivalent: the original may not be canonical.
+     */
+    public static byte[] infoHash(ByteBuffer rawInfo) {
         try {
-            output.write('l');
-            for (var item : list) {
-                output.write(encode(item));
-            }
-            output.write('e');
-            return output.toByteArray();
-
-        } catch (IOException e) {
-            throw new BencodeException("Failed to encode list", e);
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            sha1.update(rawInfo.duplicate());
+            return sha1.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
         }
     }
 
-    private static byte[] encodeMap(Map<?, ?> map) {
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        try {
-            output.write('d');
-
-            TreeMap<String, Object> sorted = new TreeMap<>();
-            for (Map.Entry<?, ?> entry : map.entrySet()) {
-                sorted.put(entry.getKey().toString(), entry.getValue());
-            }
+    private static String text(Object value) {
+        return value == null ? null : value.toString();
+    }
 
-            for (Map.Entry<String, Object> entry : sorted.entrySet()) {
-                output.write(encode(entry.getKey()));
-                output.write(encode(entry.getValue()));
-            }
-            output.write('e');
-            return output.toByteArray();
-        } catch (IOException e) {
-            throw new BencodeException("Failed to encode map", e);
-        }
+    public static byte[] encode(Object data) {
+        return BencodeEncoder.toByteArray(data);
     }
 
     public static void main(String[] args) {
         Bencode.parse("./src/file.torrent");
 
     }
-
-    public static class Pointer {
-        public int value;
-
-        public Pointer(int value) {
-            this.value = value;
-        }
-    }
 }
@@ -0,0 +1,199 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Micro benchmark for decode, encode, parse and infohash over a small tracker response, a typical
+ * torrent and a synthetic 100k-file torrent. Reports time and heap allocation per operation.
+ *
+ * Usage: BencodeBenchmark [--save results.properties] [--baseline results.properties]
+ * With a baseline, exits with status 1 if any case got more than 20% slower, so CI can catch regressions.
+ */
+public class BencodeBenchmark {
+    private static final int WARMUP_SECONDS = 2;
+    private static final int MEASURE_SECONDS = 3;
+    private static final double REGRESSION_TOLERANCE = 1.20;
+
+    private static volatile Object sink;
+
+    private record Result(String name, double nanosPerOp, double bytesPerOp) {
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path save = null;
+        Path baseline = null;
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals("--save")) {
+                save = Path.of(args[++i]);
+            } else if (args[i].equals("--baseline")) {
+                baseline = Path.of(args[++i]);
+            }
+        }
+
+        Map<String, byte[]> inputs = new LinkedHashMap<>();
+        inputs.put("tracker-response", trackerResponse(50));
+        Path typical = Path.of("./src/file.torrent");
+        inputs.put("typical-torrent", Files.exists(typical) ? Files.readAllBytes(typical) : syntheticTorrent(3, 4000));
+        inputs.put("100k-files-torrent", syntheticTorrent(100_000, 40_000));
+
+        List<Result> results = new ArrayList<>();
+        for (Map.Entry<String, byte[]> input : inputs.entrySet()) {
+            String name = input.getKey();
+            byte[] data = input.getValue();
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            Object decoded = Bencode.decode(data);
+            BencodeEncoder encoder = new BencodeEncoder();
+
+            results.add(run(name + ".decode", () -> Bencode.decode(data)));
+            results.add(run(name + ".encode", () -> Bencode.encode(decoded)));
+            results.add(run(name + ".encodeReusable", () -> encoder.encode(decoded)));
+            if (name.equals("tracker-response")) {
+                results.add(run(name + ".pickFields", () -> pickTrackerFields(buffer)));
+            } else {
+                ByteBuffer info = infoSpan(buffer);
+                results.add(run(name + ".parse", () -> Bencode.parse(buffer)));
+                results.add(run(name + ".infoHash", () -> Bencode.infoHash(info)));
+            }
+        }
+
+        Properties current = new Properties();
+        for (Result result : results) {
+            System.out.printf("%-40s %12.1f ns/op %14.1f B/op%n", result.name(), result.nanosPerOp(), result.bytesPerOp());
+            current.setProperty(result.name(), Double.toString(result.nanosPerOp()));
+        }
+        if (save != null) {
+            try (var output = Files.newOutputStream(save)) {
+                current.store(output, "BencodeBenchmark ns/op");
+            }
+        }
+        if (baseline != null && !compare(baseline, results)) {
+            System.exit(1);
+        }
+    }
+
+    private static Result run(String name, Supplier<Object> operation) {
+        warmUp(operation);
+        return measure(name, operation);
+    }
+
+    private static Result measure(String name, Supplier<Object> operation) {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().threadId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        long deadline = start + MEASURE_SECONDS * 1_000_000_000L;
+        long ops = 0;
+        long now;
+        do {
+            sink = operation.get();
+            ops++;
+        } while ((now = System.nanoTime()) < deadline);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        return new Result(name, (double) (now - start) / ops, (double) allocated / ops);
+    }
+
+    private static void warmUp(Supplier<Object> operation) {
+        long deadline = System.nanoTime() + WARMUP_SECONDS * 1_000_000_000L;
+        while (System.nanoTime() < deadline) {
+            sink = operation.get();
+        }
+    }
+
+    private static boolean compare(Path baseline, List<Result> results) throws IOException {
+        Properties previous = new Properties();
+        try (var input = Files.newInputStream(baseline)) {
+            previous.load(input);
+        }
+        boolean passed = true;
+        for (Result result : results) {
+            String value = previous.getProperty(result.name());
+            if (value == null) {
+                continue;
+            }
+            double ratio = result.nanosPerOp() / Double.parseDouble(value);
+            if (ratio > REGRESSION_TOLERANCE) {
+                System.out.printf("REGRESSION %s: %.0f%% slower than baseline%n", result.name(), (ratio - 1) * 100);
+                passed = false;
+            }
+        }
+        return passed;
+    }
+
+    private static Object pickTrackerFields(ByteBuffer response) {
+        BencodeReader reader = new BencodeReader(response);
+        reader.next();
+        long sum = 0;
+        while (reader.next() == BencodeReader.Token.KEY) {
+            if (reader.textEquals("interval") || reader.textEquals("complete") || reader.textEquals("incomplete")) {
+                sum += reader.readLong();
+            } else if (reader.textEquals("peers")) {
+                sum += reader.readBytes().length();
+            } else {
+                reader.skipValue();
+            }
+        }
+        return sum;
+    }
+
+    private static ByteBuffer infoSpan(ByteBuffer torrent) {
+        BencodeReader reader = new BencodeReader(torrent);
+        reader.next();
+        while (reader.next() == BencodeReader.Token.KEY) {
+            boolean info = reader.textEquals("info");
+            int start = reader.position();
+            reader.skipValue();
+            if (info) {
+                return torrent.slice(start, reader.position() - start);
+            }
+        }
+        throw new BencodeException("No info dictionary");
+    }
+
+    private static byte[] trackerResponse(int peers) {
+        byte[] compactPeers = new byte[peers * 6];
+        new Random(42).nextBytes(compactPeers);
+        Map<String, Object> response = new HashMap<>();
+        response.put("interval", 1800);
+        response.put("min interval", 900);
+        response.put("complete", 120);
+        response.put("incomplete", 37);
+        response.put("peers", compactPeers);
+        return Bencode.encode(response);
+    }
+
+    static byte[] syntheticTorrent(int fileCount, int pieceCount) {
+        Random random = new Random(42);
+        byte[] pieces = new byte[pieceCount * PieceHashTable.HASH_LENGTH];
+        random.nextBytes(pieces);
+        List<Object> files = new ArrayList<>(fileCount);
+        for (int i = 0; i < fileCount; i++) {
+            Map<String, Object> file = new HashMap<>();
+            file.put("length", 1024L + random.nextInt(1 << 20));
+            file.put("path", List.of("dir" + (i / 1000), "sub" + (i % 10), "file-" + i + ".bin"));
+            files.add(file);
+        }
+        Map<String, Object> info = new HashMap<>();
+        info.put("name", "synthetic");
+        info.put("piece length", 262144L);
+        info.put("pieces", pieces);
+        info.put("files", files);
+        Map<String, Object> torrent = new HashMap<>();
+        torrent.put("announce", "udp://tracker.example.org:6969/announce");
+        torrent.put("announce-list", List.of(List.of("udp://tracker.example.org:6969/announce"),
+                List.of("http://tracker.example.org/announce")));
+        torrent.put("created by", "BencodeBenchmark");
+        torrent.put("creation date", 1700000000L);
+        torrent.put("info", info);
+        return Bencode.encode(torrent);
+    }
+}
@@ -0,0 +1,68 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bencode decoder that works directly on a {@link ByteBuffer} (heap, direct or memory-mapped).
+ * Integers and length prefixes are parsed in place, and byte strings are returned as
+ * {@link BencodeString} views of the source buffer instead of copied Strings.
+ * Dictionary keys are decoded as UTF-8 Strings.
+ * Builds the tree on top of {@link BencodeReader}; use the reader directly to pick single fields.
+ */
+public class BencodeDecoder {
+
+    private BencodeDecoder() {
+    }
+
+    public static Object decode(ByteBuffer data) {
+        BencodeReader reader = new BencodeReader(data);
+        return readValue(reader, reader.next());
+    }
+
+    public static Object decode(Path path) throws IOException {
+        return decode(map(path));
+    }
+
+    public static MappedByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            //the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    static Object readValue(BencodeReader reader, BencodeReader.Token token) {
+        return switch (token) {
+            case INTEGER -> reader.longValue();
+            case BYTES -> reader.bytes();
+            case LIST_START -> readList(reader);
+            case DICT_START -> readMap(reader);
+            case EOF -> throw new BencodeException("Unexpected end of data");
+            default -> throw new BencodeException("Expected a value at position " + reader.position());
+        };
+    }
+
+    private static List<Object> readList(BencodeReader reader) {
+        List<Object> list = new ArrayList<>();
+        BencodeReader.Token token;
+        while ((token = reader.next()) != BencodeReader.Token.END) {
+            list.add(readValue(reader, token));
+        }
+        return list;
+    }
+
+    private static Map<String, Object> readMap(BencodeReader reader) {
+        Map<String, Object> map = new HashMap<>();
+        while (reader.next() == BencodeReader.Token.KEY) {
+            String key = reader.text();
+            map.put(key, readValue(reader, reader.next()));
+        }
+        return map;
+    }
+}
@@ -0,0 +1,248 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Single-pass Bencode encoder. The exact encoded size is computed up front, then the value is
+ * written once into a reusable growable buffer (or a caller supplied one), with integers written
+ * digit by digit and dictionary keys sorted by their raw UTF-8 bytes as the spec requires.
+ * Accepts String (UTF-8), BencodeString, byte[], ByteBuffer (its remaining bytes), Number, List
+ * and Map with String keys.
+ */
+public class BencodeEncoder {
+    //UTF-8 byte order is the same as code point order
+    static final Comparator<String> RAW_ORDER = BencodeEncoder::compareRaw;
+
+    private ByteBuffer buffer;
+
+    public BencodeEncoder() {
+        this(1024);
+    }
+
+    public BencodeEncoder(int initialCapacity) {
+        buffer = ByteBuffer.allocate(initialCapacity);
+    }
+
+    /**
+     * Encodes into the encoder's internal buffer. The returned buffer is flipped and
+     * stays valid until the next call.
+     */
+    public ByteBuffer encode(Object value) {
+        int size = encodedLength(value);
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+        }
+        buffer.clear();
+        write(value, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    public void encode(Object value, OutputStream output) throws IOException {
+        ByteBuffer encoded = encode(value);
+        output.write(encoded.array(), encoded.arrayOffset(), encoded.remaining());
+    }
+
+    /**
+     * Writes the value at the target's position. Throws BufferOverflowException if the target
+     * has less than {@link #encodedLength(Object)} bytes remaining.
+     */
+    public static void encode(Object value, ByteBuffer target) {
+        write(value, target);
+    }
+
+    public static byte[] toByteArray(Object value) {
+        byte[] result = new byte[encodedLength(value)];
+        write(value, ByteBuffer.wrap(result));
+        return result;
+    }
+
+    public static int encodedLength(Object value) {
+        return switch (value) {
+            case String s -> bytesLength(utf8Length(s));
+            case BencodeString bytes -> bytesLength(bytes.length());
+            case byte[] bytes -> bytesLength(bytes.length);
+            case ByteBuffer bytes -> bytesLength(bytes.remaining());
+            case Number n -> integerLength(n.longValue()) + 2;
+            case List<?> list -> {
+                int length = 2;
+                for (var item : list) {
+                    length += encodedLength(item);
+                }
+                yield length;
+            }
+            case Map<?, ?> map -> {
+                int length = 2;
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    length += encodedLength(key(entry.getKey())) + encodedLength(entry.getValue());
+                }
+                yield length;
+            }
+            default -> throw new BencodeException("Cannot encode " + value.getClass().getName()
+                    + ", only String, BencodeString, byte[], ByteBuffer, Number, List and Map are supported");
+        };
+    }
+
+    private static void write(Object value, ByteBuffer out) {
+        switch (value) {
+            case String s -> {
+                putInteger(out, utf8Length(s));
+                out.put((byte) ':');
+                putUtf8(out, s);
+            }
+            case BencodeString bytes -> {
+                putInteger(out, bytes.length());
+                out.put((byte) ':');
+                out.put(out.position(), bytes.source(), bytes.offset(), bytes.length());
+                out.position(out.position() + bytes.length());
+            }
+            case byte[] bytes -> {
+                putInteger(out, bytes.length);
+                out.put((byte) ':');
+                out.put(bytes);
+            }
+            case ByteBuffer bytes -> {
+                putInteger(out, bytes.remaining());
+                out.put((byte) ':');
+                out.put(bytes.duplicate());
+            }
+            case Number n -> {
+                out.put((byte) 'i');
+                putInteger(out, n.longValue());
+                out.put((byte) 'e');
+            }
+            case List<?> list -> {
+                out.put((byte) 'l');
+                for (var item : list) {
+                    write(item, out);
+                }
+                out.put((byte) 'e');
+            }
+            case Map<?, ?> map -> {
+                out.put((byte) 'd');
+                String[] keys = new String[map.size()];
+                int i = 0;
+                for (Object key : map.keySet()) {
+                    keys[i++] = key(key);
+                }
+                Arrays.sort(keys, RAW_ORDER);
+                for (String key : keys) {
+                    write(key, out);
+                    write(map.get(key), out);
+                }
+                out.put((byte) 'e');
+            }
+            default -> throw new BencodeException("Cannot encode " + value.getClass().getName()
+                    + ", only String, BencodeString, byte[], ByteBuffer, Number, List and Map are supported");
+        }
+    }
+
+    private static String key(Object key) {
+        if (key instanceof String s) {
+            return s;
+        }
+        throw new BencodeException("Dictionary keys must be Strings");
+    }
+
+    private static int bytesLength(int length) {
+        return integerLength(length) + 1 + length;
+    }
+
+    static int integerLength(long value) {
+        int length = value < 0 ? 2 : 1;
+        //work on the negative magnitude so Long.MIN_VALUE does not overflow
+        long x = value < 0 ? value : -value;
+        while (x <= -10) {
+            x /= 10;
+            length++;
+        }
+        return length;
+    }
+
+    static void putInteger(ByteBuffer out, long value) {
+        int end = out.position() + integerLength(value);
+        if (end > out.limit()) {
+            throw new BufferOverflowException();
+        }
+        long x = value < 0 ? value : -value;
+        int i = end;
+        do {
+            out.put(--i, (byte) ('0' - (x % 10)));
+            x /= 10;
+        } while (x != 0);
+        if (value < 0) {
+            out.put(--i, (byte) '-');
+        }
+        out.position(end);
+    }
+
+    static int utf8Length(String s) {
+        int length = s.length();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                continue;
+            }
+            if (c < 0x800) {
+                length += 1;
+            } else if (isSurrogatePair(s, i)) {
+                length += 2; //2 chars, 4 bytes
+                i++;
+            } else if (!Character.isSurrogate(c)) {
+                length += 2;
+            }
+            //a lone surrogate is written as a single '?', like String.getBytes does
+        }
+        return length;
+    }
+
+    private static void putUtf8(ByteBuffer out, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (isSurrogatePair(s, i)) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                out.put((byte) (0xF0 | (codePoint >> 18)));
+                out.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private static boolean isSurrogatePair(String s, int i) {
+        return Character.isHighSurrogate(s.charAt(i))
+                && i + 1 < s.length()
+                && Character.isLowSurrogate(s.charAt(i + 1));
+    }
+
+    private static int compareRaw(String a, String b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int ca = a.codePointAt(i);
+            int cb = b.codePointAt(j);
+            if (ca != cb) {
+                return Integer.compare(ca, cb);
+            }
+            i += Character.charCount(ca);
+            j += Character.charCount(cb);
+        }
+        return Integer.compare(a.length() - i, b.length() - j);
+    }
+}
@@ -0,0 +1,280 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Pull parser for Bencode. Each call to {@link #next()} consumes one token and exposes its value
+ * through {@link #longValue()} or the byte range {@link #bytesOffset()}/{@link #bytesLength()},
+ * so callers can pick out the fields they need and {@link #skipValue()} the rest without
+ * materialising it. Reads are absolute, the source buffer's position is never changed.
+ */
+public class BencodeReader {
+    public enum Token {
+        DICT_START, LIST_START, KEY, INTEGER, BYTES, END, EOF
+    }
+
+    //container states kept on the stack
+    private static final byte IN_LIST = 0;
+    private static final byte DICT_EXPECT_KEY = 1;
+    private static final byte DICT_EXPECT_VALUE = 2;
+
+    private final ByteBuffer data;
+    private final int limit;
+    private int position;
+
+    private byte[] stack = new byte[16];
+    private int depth;
+
+    private long longValue;
+    private int bytesOffset;
+    private int bytesLength;
+
+    public BencodeReader(ByteBuffer data) {
+        this(data, data.position());
+    }
+
+    public BencodeReader(ByteBuffer data, int position) {
+        this.data = data;
+        this.position = position;
+        this.limit = data.limit();
+    }
+
+    public Token next() {
+        if (position >= limit) {
+            if (depth == 0) {
+                return Token.EOF;
+            }
+            throw new BencodeException("Unexpected end of data");
+        }
+        byte b = data.get(position);
+        if (depth > 0 && b == 'e') {
+            if (stack[depth - 1] == DICT_EXPECT_VALUE) {
+                throw new BencodeException("Dictionary key without value at position " + position);
+            }
+            position++; // skip 'e'
+            depth--;
+            valueDone();
+            return Token.END;
+        }
+        if (depth > 0 && stack[depth - 1] == DICT_EXPECT_KEY) {
+            if (b < '0' || b > '9') {
+                throw new BencodeException("Dictionary key must be a byte string at position " + position);
+            }
+            scanBytes();
+            stack[depth - 1] = DICT_EXPECT_VALUE;
+            return Token.KEY;
+        }
+        return switch (b) {
+            case 'i' -> {
+                position++; // skip 'i'
+                longValue = readInteger('e');
+                valueDone();
+                yield Token.INTEGER;
+            }
+            case 'l' -> {
+                position++; // skip 'l'
+                push(IN_LIST);
+                yield Token.LIST_START;
+            }
+            case 'd' -> {
+                position++; // skip 'd'
+                push(DICT_EXPECT_KEY);
+                yield Token.DICT_START;
+            }
+            case '1', '2', '3', '4', '5', '6', '7', '8', '9', '0' -> {
+                scanBytes();
+                valueDone();
+                yield Token.BYTES;
+            }
+            default -> throw new BencodeException("Invalid Bencode at position " + position);
+        };
+    }
+
+    /**
+     * Consumes the next complete value, including every nested container.
+     */
+    public void skipValue() {
+        switch (next()) {
+            case DICT_START, LIST_START -> skipContainer();
+            case INTEGER, BYTES -> {
+            }
+            default -> throw new BencodeException("Expected a value at position " + position);
+        }
+    }
+
+    /**
+     * Consumes the rest of the innermost open container, up to and including its END token.
+     */
+    public void skipContainer() {
+        int target = depth - 1;
+        while (depth > target) {
+            if (next() == Token.EOF) {
+                throw new BencodeException("Unexpected end of data");
+            }
+        }
+    }
+
+    /**
+     * Drives the visitor over the next complete value.
+     */
+    public void accept(BencodeVisitor visitor) {
+        int base = depth;
+        do {
+            switch (next()) {
+                case DICT_START -> {
+                    if (!visitor.startDict()) {
+                        skipContainer();
+                    }
+                }
+                case LIST_START -> {
+                    if (!visitor.startList()) {
+                        skipContainer();
+                    }
+                }
+                case KEY -> {
+                    if (!visitor.key(this)) {
+                        skipValue();
+                    }
+                }
+                case INTEGER -> visitor.integer(longValue);
+                case BYTES -> visitor.bytes(this);
+                case END -> visitor.end();
+                case EOF -> throw new BencodeException("Unexpected end of data");
+            }
+        } while (depth > base);
+    }
+
+    public Object readValue() {
+        return BencodeDecoder.readValue(this, next());
+    }
+
+    public long readLong() {
+        if (next() != Token.INTEGER) {
+            throw new BencodeException("Expected an integer at position " + position);
+        }
+        return longValue;
+    }
+
+    public BencodeString readBytes() {
+        if (next() != Token.BYTES) {
+            throw new BencodeException("Expected a byte string at position " + position);
+        }
+        return bytes();
+    }
+
+    public String readText() {
+        readBytes();
+        return text();
+    }
+
+    public long longValue() {
+        return longValue;
+    }
+
+    public int bytesOffset() {
+        return bytesOffset;
+    }
+
+    public int bytesLength() {
+        return bytesLength;
+    }
+
+    public BencodeString bytes() {
+        return new BencodeString(data, bytesOffset, bytesLength);
+    }
+
+    public String text() {
+        return text(data, bytesOffset, bytesLength);
+    }
+
+    /**
+     * Compares the current byte string or key with an ASCII string without allocating.
+     */
+    public boolean textEquals(String ascii) {
+        if (bytesLength != ascii.length()) {
+            return false;
+        }
+        for (int i = 0; i < bytesLength; i++) {
+            if (data.get(bytesOffset + i) != (byte) ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int position() {
+        return position;
+    }
+
+    public int depth() {
+        return depth;
+    }
+
+    public ByteBuffer buffer() {
+        return data;
+    }
+
+    private void scanBytes() {
+        long length = readInteger(':');
+        if (length < 0 || position + length > limit) {
+            throw new BencodeException("String length exceeds data bound at position " + position);
+        }
+        bytesOffset = position;
+        bytesLength = (int) length;
+        position += bytesLength;
+    }
+
+    private long readInteger(char terminator) {
+        boolean negative = peek() == '-';
+        if (negative) {
+            position++;
+        }
+        int start = position;
+        long value = 0;
+        byte b;
+        while ((b = peek()) != terminator) {
+            if (b < '0' || b > '9') {
+                throw new BencodeException("Invalid bencoded number at position " + position);
+            }
+            if (value > (Long.MAX_VALUE - (b - '0')) / 10) {
+                throw new BencodeException("Bencoded number overflows a long at position " + start);
+            }
+            value = value * 10 + (b - '0');
+            position++;
+        }
+        if (position == start) {
+            throw new BencodeException("Empty bencoded number at position " + start);
+        }
+        position++; // skip terminator
+        return negative ? -value : value;
+    }
+
+    private byte peek() {
+        if (position >= limit) {
+            throw new BencodeException("Unexpected end of data");
+        }
+        return data.get(position);
+    }
+
+    private void push(byte state) {
+        if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth * 2);
+        }
+        stack[depth++] = state;
+    }
+
+    private void valueDone() {
+        if (depth > 0 && stack[depth - 1] == DICT_EXPECT_VALUE) {
+            stack[depth - 1] = DICT_EXPECT_KEY;
+        }
+    }
+
+    static String text(ByteBuffer data, int offset, int length) {
+        if (data.hasArray()) {
+            return new String(data.array(), data.arrayOffset() + offset, length, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        data.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,116 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A Bencode byte string. It is a view over a range of the buffer it was decoded from, so binary
+ * fields like pieces or compact peers are never copied, and it is only turned into UTF-8 text
+ * when {@link #toString()} is called (the result is cached).
+ */
+public final class BencodeString {
+    private final ByteBuffer source;
+    private final int offset;
+    private final int length;
+    private String text;
+    private int hash;
+
+    BencodeString(ByteBuffer source, int offset, int length) {
+        this.source = source;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public static BencodeString of(byte[] bytes) {
+        return new BencodeString(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    public static BencodeString of(String text) {
+        BencodeString result = of(text.getBytes(StandardCharsets.UTF_8));
+        result.text = text;
+        return result;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public byte byteAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return source.get(offset + index);
+    }
+
+    /**
+     * Read-only view of the bytes, positioned at 0. No bytes are copied.
+     */
+    public ByteBuffer asByteBuffer() {
+        return source.slice(offset, length).asReadOnlyBuffer();
+    }
+
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[length];
+        source.get(offset, bytes);
+        return bytes;
+    }
+
+    /**
+     * Compares with an ASCII string without decoding or allocating.
+     */
+    public boolean textEquals(String ascii) {
+        if (length != ascii.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (source.get(offset + i) != (byte) ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //package-private accessors for code that reads the backing range directly
+    ByteBuffer source() {
+        return source;
+    }
+
+    int offset() {
+        return offset;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof BencodeString other) || other.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (source.get(offset + i) != other.source.get(other.offset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0) {
+            h = 1;
+            for (int i = 0; i < length; i++) {
+                h = 31 * h + source.get(offset + i);
+            }
+            hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        if (text == null) {
+            text = BencodeReader.text(source, offset, length);
+        }
+        return text;
+    }
+}
@@ -0,0 +1,28 @@
+/**
+ * Callbacks for {@link BencodeReader#accept(BencodeVisitor)}. Returning false from
+ * {@link #startDict()}, {@link #startList()} or {@link #key(BencodeReader)} skips the
+ * container or the key's value without materialising it (and without an {@link #end()} event).
+ */
+public interface BencodeVisitor {
+    default boolean startDict() {
+        return true;
+    }
+
+    default boolean startList() {
+        return true;
+    }
+
+    //the key bytes are available through reader.textEquals(...), reader.text() or reader.bytes()
+    default boolean key(BencodeReader reader) {
+        return true;
+    }
+
+    default void integer(long value) {
+    }
+
+    default void bytes(BencodeReader reader) {
+    }
+
+    default void end() {
+    }
+}
@@ -0,0 +1,18 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the downloaded blocks of a {@link BlockRequestScheduler}. Calls are made holding the
+ * scheduler's lock, on the thread of the connection the block arrived on.
+ */
+public interface BlockListener {
+    /**
+     * The block is only valid during the call, copy it out.
+     */
+    void blockReceived(int pieceIndex, int begin, ByteBuffer block);
+
+    /**
+     * Every block of the piece arrived. Answer later with {@link BlockRequestScheduler#pieceVerified}
+     * or {@link BlockRequestScheduler#pieceRejected}.
+     */
+    void pieceCompleted(int pieceIndex);
+}
@@ -0,0 +1,566 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps 16 KiB block requests in flight on every unchoked peer of one torrent. Each peer's queue
+ * depth follows its bandwidth-delay product: delivery rate measured over one second windows times
+ * the lowest request round trip seen recently, doubled so a peer that could go faster gets the
+ * requests to show it. Round trips are only sampled from requests sent into an empty queue, any
+ * other waits behind the blocks ahead of it and would grow the depth with every window. Pieces already started are finished before the {@link PiecePicker} picks
+ * new ones. Once every wanted block is requested the scheduler enters endgame: idle peers request
+ * blocks still in flight elsewhere, and whichever copy arrives first cancels the others.
+ *
+ * Block state lives in bitsets over block numbers (piece * blocksPerPiece + block). Register it
+ * as the torrent's {@link PeerWireListener}; received blocks go to a {@link BlockListener}.
+ */
+public class BlockRequestScheduler implements PeerWireListener {
+    public static final int BLOCK_LENGTH = PeerConnection.MAX_BLOCK_LENGTH;
+    private static final int MIN_QUEUE_DEPTH = 4;
+    private static final int MAX_QUEUE_DEPTH = 500;
+    private static final double DEPTH_GAIN = 2.0;
+    private static final long RATE_WINDOW_NANOS = 1_000_000_000L;
+    //the lowest round trip of a window replaces the one before, in case the path got slower
+    private static final long MIN_RTT_WINDOW_NANOS = 10_000_000_000L;
+
+    private final BlockListener listener;
+    private final int pieceCount;
+    private final long pieceLength;
+    private final long totalLength;
+    private final int blocksPerPiece;
+
+    //all state guarded by 'this'
+    private final long[] requested; //requested from at least one peer
+    private final long[] received;
+    private final int[] receivedCounts; //per piece
+    private final BitSet have = new BitSet(); //verified pieces
+    private final PiecePicker picker;
+    private int[] active = new int[16]; //picked, not every block received yet, in pick order
+    private int activeCount;
+    private final Map<PeerConnection, PeerState> peers = new HashMap<>();
+    private int freeBlocks; //blocks of active pieces neither requested nor received
+    private int missingPieces;
+    private boolean paused;
+
+    private static final class PeerState {
+        final PeerConnection connection;
+        int[] blocks = new int[MIN_QUEUE_DEPTH];
+        long[] sentAt = new long[MIN_QUEUE_DEPTH];
+        final IntIntMap indexes = new IntIntMap(MIN_QUEUE_DEPTH); //block number -> position in blocks
+        int inFlight;
+        int depth = MIN_QUEUE_DEPTH;
+        double bytesPerSecond;
+        long windowStart;
+        long windowBytes;
+        long minRtt; //lowest of the last window and the current one
+        long windowMinRtt; //lowest of the current window, 0 before its first sample
+        long rttWindowStart;
+        int probe = -1; //block requested into an empty queue, its round trip has no queueing
+
+        PeerState(PeerConnection connection) {
+            this.connection = connection;
+        }
+
+        int indexOf(int block) {
+            return indexes.getOrDefault(block, -1);
+        }
+
+        void add(int block, long now) {
+            if (inFlight == blocks.length) {
+                blocks = Arrays.copyOf(blocks, inFlight * 2);
+                sentAt = Arrays.copyOf(sentAt, inFlight * 2);
+            }
+            if (inFlight == 0) {
+                probe = block;
+            }
+            indexes.put(block, inFlight);
+            blocks[inFlight] = block;
+            sentAt[inFlight++] = now;
+        }
+
+        //order does not matter, the last entry fills the gap
+        void removeAt(int index) {
+            if (blocks[index] == probe) {
+                probe = -1;
+            }
+            indexes.remove(blocks[index]);
+            inFlight--;
+            if (index < inFlight) {
+                blocks[index] = blocks[inFlight];
+                sentAt[index] = sentAt[inFlight];
+                indexes.put(blocks[index], index);
+            }
+        }
+    }
+
+    public BlockRequestScheduler(TorrentMetaData metaData, BlockListener listener) {
+        this.listener = listener;
+        this.pieceCount = metaData.pieces().pieceCount();
+        this.pieceLength = metaData.pieceLength();
+        this.totalLength = metaData.size();
+        if (pieceLength <= 0 || (pieceLength + BLOCK_LENGTH - 1) / BLOCK_LENGTH > Integer.MAX_VALUE / Math.max(1, pieceCount)) {
+            throw new IllegalArgumentException("Unsupported piece length " + pieceLength);
+        }
+        this.blocksPerPiece = (int) ((pieceLength + BLOCK_LENGTH - 1) / BLOCK_LENGTH);
+        int blockCount = pieceCount * blocksPerPiece;
+        this.requested = new long[(blockCount + 63) >>> 6];
+        this.received = new long[requested.length];
+        this.receivedCounts = new int[pieceCount];
+        this.missingPieces = pieceCount;
+        this.picker = new PiecePicker(metaData);
+        for (int piece = 0; piece < pieceCount; piece++) {
+            int blocks = blockCount(piece);
+            //the short last piece has fewer blocks, mark the rest received so they are never asked for
+            for (int block = blocks; block < blocksPerPiece; block++) {
+                set(received, piece * blocksPerPiece + block);
+            }
+        }
+    }
+
+    /**
+     * Marks pieces already on disk, before any peer connects.
+     */
+    public synchronized void alreadyHave(BitSet pieces) {
+        for (int piece = pieces.nextSetBit(0); piece >= 0 && piece < pieceCount; piece = pieces.nextSetBit(piece + 1)) {
+            if (have.get(piece)) {
+                continue;
+            }
+            for (int block = 0; block < blockCount(piece); block++) {
+                set(received, piece * blocksPerPiece + block);
+            }
+            receivedCounts[piece] = blockCount(piece);
+            picker.remove(piece);
+            have.set(piece);
+            missingPieces--;
+        }
+    }
+
+    public synchronized boolean isComplete() {
+        return missingPieces == 0;
+    }
+
+    public synchronized boolean isEndgame() {
+        return endgame();
+    }
+
+    /**
+     * Streaming: download pieces in order instead of rarest first.
+     */
+    public synchronized void setSequential(boolean sequential) {
+        picker.setSequential(sequential);
+    }
+
+    public synchronized void setPiecePriority(int piece, int priority) {
+        picker.setPiecePriority(piece, priority);
+        wake();
+    }
+
+    /**
+     * Per-file priority of a multi-file torrent, {@link PiecePicker#PRIORITY_SKIP} leaves the file out.
+     */
+    public synchronized void setFilePriority(int file, int priority) {
+        picker.setFilePriority(file, priority);
+        wake();
+    }
+
+    /**
+     * Stops sending new requests, for a consumer falling behind; blocks in flight still arrive.
+     */
+    public synchronized void setPaused(boolean paused) {
+        this.paused = paused;
+        if (!paused) {
+            wake();
+        }
+    }
+
+    public synchronized BitSet have() {
+        return (BitSet) have.clone();
+    }
+
+    public synchronized int queueDepth(PeerConnection connection) {
+        PeerState peer = peers.get(connection);
+        return peer == null ? 0 : peer.depth;
+    }
+
+    public synchronized int inFlight(PeerConnection connection) {
+        PeerState peer = peers.get(connection);
+        return peer == null ? 0 : peer.inFlight;
+    }
+
+    public final int blockCount(int piece) {
+        return (int) ((pieceLength(piece) + BLOCK_LENGTH - 1) / BLOCK_LENGTH);
+    }
+
+    public final long pieceLength(int piece) {
+        return piece == pieceCount - 1 ? totalLength - piece * pieceLength : pieceLength;
+    }
+
+    /**
+     * The piece matched its hash: tells every peer, and once the torrent is complete drops interest.
+     */
+    public synchronized void pieceVerified(int piece) {
+        if (have.get(piece)) {
+            return;
+        }
+        have.set(piece);
+        missingPieces--;
+        for (PeerState peer : snapshot()) {
+            peer.connection.have(piece);
+            if (missingPieces == 0 && peer.connection.isInterested()) {
+                peer.connection.notInterested();
+            }
+        }
+    }
+
+    /**
+     * The piece failed its hash: every block of it is downloaded again.
+     */
+    public synchronized void pieceRejected(int piece) {
+        if (have.get(piece)) {
+            return;
+        }
+        int first = piece * blocksPerPiece;
+        for (int block = 0; block < blockCount(piece); block++) {
+            clear(received, first + block);
+            clear(requested, first + block);
+        }
+        //blocks still in flight (endgame duplicates) would now be counted twice, cancel them
+        int[] dropped = new int[blocksPerPiece];
+        for (PeerState peer : snapshot()) {
+            int count = 0;
+            for (int i = peer.inFlight - 1; i >= 0; i--) {
+                if (peer.blocks[i] / blocksPerPiece == piece) {
+                    dropped[count++] = peer.blocks[i];
+                    peer.removeAt(i);
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                int begin = (dropped[i] % blocksPerPiece) * BLOCK_LENGTH;
+                peer.connection.cancel(piece, begin, blockLength(piece, begin));
+            }
+        }
+        receivedCounts[piece] = 0;
+        removeActive(piece);
+        picker.restore(piece);
+        wake();
+    }
+
+    @Override
+    public synchronized void connected(PeerConnection connection) {
+        if (connection.isClosed()) {
+            return; //closed right after the handshake, disconnected may already have run
+        }
+        peers.put(connection, new PeerState(connection));
+        if (!have.isEmpty()) {
+            connection.bitfield(have);
+        }
+    }
+
+    @Override
+    public synchronized void disconnected(PeerConnection connection, Exception cause) {
+        PeerState peer = peers.remove(connection);
+        if (peer != null) {
+            picker.peerLost(connection.peerPieces());
+            releaseAll(peer);
+        }
+    }
+
+    //without the fast extension a choke drops every pending request
+    @Override
+    public synchronized void choked(PeerConnection connection) {
+        PeerState peer = peers.get(connection);
+        if (peer != null) {
+            releaseAll(peer);
+        }
+    }
+
+    @Override
+    public synchronized void unchoked(PeerConnection connection) {
+        PeerState peer = peers.get(connection);
+        if (peer != null) {
+            peer.windowStart = System.nanoTime();
+            peer.windowBytes = 0;
+            fill(peer);
+        }
+    }
+
+    @Override
+    public synchronized void have(PeerConnection connection, int pieceIndex) {
+        PeerState peer = peers.get(connection);
+        if (peer == null) {
+            return;
+        }
+        picker.peerHas(pieceIndex);
+        if (!have.get(pieceIndex)) {
+            if (!connection.isInterested()) {
+                connection.interested();
+            }
+            fill(peer);
+        }
+    }
+
+    @Override
+    public synchronized void bitfield(PeerConnection connection, BitSet pieces) {
+        PeerState peer = peers.get(connection);
+        if (peer == null) {
+            return;
+        }
+        picker.peerHas(pieces);
+        if (hasWanted(connection)) {
+            connection.interested();
+            fill(peer);
+        }
+    }
+
+    @Override
+    public synchronized void piece(PeerConnection connection, int pieceIndex, int begin, ByteBuffer block) {
+        PeerState peer = peers.get(connection);
+        if (peer == null || begin % BLOCK_LENGTH != 0 || begin / BLOCK_LENGTH >= blockCount(pieceIndex)) {
+            return;
+        }
+        int number = pieceIndex * blocksPerPiece + begin / BLOCK_LENGTH;
+        int index = peer.indexOf(number);
+        if (index < 0) {
+            return; //not asked for, or cancelled
+        }
+        long now = System.nanoTime();
+        long sentAt = peer.sentAt[index];
+        boolean probe = number == peer.probe;
+        peer.removeAt(index);
+        if (block.remaining() != blockLength(pieceIndex, begin)) {
+            release(peer, number);
+            fill(peer);
+            return;
+        }
+        if (probe) {
+            sampleRtt(peer, now - sentAt, now);
+        }
+        measure(peer, block.remaining(), now);
+        if (!get(received, number)) {
+            set(received, number);
+            listener.blockReceived(pieceIndex, begin, block);
+            if (endgame()) { //other peers may have it in flight
+                cancelElsewhere(peer, number);
+            }
+            if (++receivedCounts[pieceIndex] == blockCount(pieceIndex)) {
+                removeActive(pieceIndex);
+                listener.pieceCompleted(pieceIndex);
+            }
+        }
+        fill(peer);
+    }
+
+    private void fill(PeerState peer) {
+        PeerConnection connection = peer.connection;
+        while (!paused && peer.inFlight < peer.depth && !connection.isPeerChoking() && !connection.isClosed()) {
+            int number = nextBlock(peer);
+            if (number < 0) {
+                return;
+            }
+            if (!get(requested, number)) {
+                set(requested, number);
+                freeBlocks--;
+            }
+            peer.add(number, System.nanoTime());
+            int piece = number / blocksPerPiece;
+            int begin = (number % blocksPerPiece) * BLOCK_LENGTH;
+            connection.request(piece, begin, blockLength(piece, begin));
+        }
+    }
+
+    /**
+     * Next block to ask the peer for: a free block of a started piece, then of a newly picked
+     * piece, and in endgame a block in flight at other peers. -1 if the peer has nothing for us.
+     */
+    private int nextBlock(PeerState peer) {
+        PeerConnection connection = peer.connection;
+        for (int i = 0; i < activeCount; i++) {
+            int piece = active[i];
+            if (connection.peerHas(piece)) {
+                int first = piece * blocksPerPiece;
+                int number = nextFree(first, first + blocksPerPiece);
+                if (number >= 0) {
+                    return number;
+                }
+            }
+        }
+        if (freeBlocks > 0 || picker.hasPickable()) {
+            int piece = picker.pick(connection.peerPieces());
+            if (piece >= 0) {
+                addActive(piece);
+                freeBlocks += blockCount(piece);
+                return nextFree(piece * blocksPerPiece, (piece + 1) * blocksPerPiece);
+            }
+            return -1;
+        }
+        for (int i = 0; i < activeCount; i++) {
+            int piece = active[i];
+            if (connection.peerHas(piece)) {
+                int first = piece * blocksPerPiece;
+                for (int number = first; number < first + blocksPerPiece; number++) {
+                    if (!get(received, number) && peer.indexOf(number) < 0) {
+                        return number;
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    private boolean hasWanted(PeerConnection connection) {
+        BitSet pieces = connection.peerPieces();
+        if (pieces == null) {
+            return false;
+        }
+        for (int piece = pieces.nextSetBit(0); piece >= 0 && piece < pieceCount; piece = pieces.nextSetBit(piece + 1)) {
+            if (!have.get(piece)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void sampleRtt(PeerState peer, long rtt, long now) {
+        if (now - peer.rttWindowStart > MIN_RTT_WINDOW_NANOS) {
+            //a window without samples keeps the minimum from before
+            if (peer.windowMinRtt > 0) {
+                peer.minRtt = peer.windowMinRtt;
+            }
+            peer.windowMinRtt = 0;
+            peer.rttWindowStart = now;
+        }
+        if (peer.windowMinRtt == 0 || rtt < peer.windowMinRtt) {
+            peer.windowMinRtt = rtt;
+        }
+        if (peer.minRtt == 0 || rtt < peer.minRtt) {
+            peer.minRtt = rtt;
+        }
+    }
+
+    private void measure(PeerState peer, int bytes, long now) {
+        peer.windowBytes += bytes;
+        long elapsed = now - peer.windowStart;
+        if (elapsed < RATE_WINDOW_NANOS) {
+            return;
+        }
+        double sample = peer.windowBytes * 1e9 / elapsed;
+        //follow a rising rate at once so the queue opens up quickly, smooth drops
+        peer.bytesPerSecond = sample > peer.bytesPerSecond ? sample : (peer.bytesPerSecond + sample) / 2;
+        peer.windowStart = now;
+        peer.windowBytes = 0;
+        double bdpBlocks = DEPTH_GAIN * peer.bytesPerSecond * peer.minRtt / 1e9 / BLOCK_LENGTH;
+        peer.depth = (int) Math.max(MIN_QUEUE_DEPTH, Math.min(MAX_QUEUE_DEPTH, Math.ceil(bdpBlocks)));
+    }
+
+    private void cancelElsewhere(PeerState receivedFrom, int number) {
+        int piece = number / blocksPerPiece;
+        int begin = (number % blocksPerPiece) * BLOCK_LENGTH;
+        for (PeerState peer : snapshot()) {
+            if (peer == receivedFrom) {
+                continue;
+            }
+            int index = peer.indexOf(number);
+            if (index >= 0) {
+                peer.removeAt(index);
+                peer.connection.cancel(piece, begin, blockLength(piece, begin));
+                fill(peer);
+            }
+        }
+    }
+
+    private void releaseAll(PeerState peer) {
+        while (peer.inFlight > 0) {
+            int number = peer.blocks[peer.inFlight - 1];
+            peer.removeAt(peer.inFlight - 1);
+            release(peer, number);
+        }
+        //blocks given back can be picked up by peers idling for lack of work
+        wake();
+    }
+
+    //the peer will not deliver the block, make it requestable again unless another peer has it in flight
+    private void release(PeerState from, int number) {
+        if (get(received, number) || !get(requested, number)) {
+            return;
+        }
+        for (PeerState peer : peers.values()) {
+            if (peer != from && peer.indexOf(number) >= 0) {
+                return;
+            }
+        }
+        clear(requested, number);
+        freeBlocks++;
+    }
+
+    //every wanted block is requested or received, some are still missing
+    private boolean endgame() {
+        return freeBlocks == 0 && !picker.hasPickable() && activeCount > 0;
+    }
+
+    //priorities changed or a piece came back, idle peers may have work again
+    private void wake() {
+        for (PeerState peer : snapshot()) {
+            if (peer.inFlight < peer.depth) {
+                fill(peer);
+            }
+        }
+    }
+
+    private void addActive(int piece) {
+        if (activeCount == active.length) {
+            active = Arrays.copyOf(active, activeCount * 2);
+        }
+        active[activeCount++] = piece;
+    }
+
+    //keeps pick order, older pieces are finished first
+    private void removeActive(int piece) {
+        for (int i = 0; i < activeCount; i++) {
+            if (active[i] == piece) {
+                System.arraycopy(active, i + 1, active, i, activeCount - i - 1);
+                activeCount--;
+                return;
+            }
+        }
+    }
+
+    private int blockLength(int piece, int begin) {
+        return (int) Math.min(BLOCK_LENGTH, pieceLength(piece) - begin);
+    }
+
+    //sends may close a connection and remove its peer, iterate over a copy
+    private List<PeerState> snapshot() {
+        return new ArrayList<>(peers.values());
+    }
+
+    //first block in [from, to) neither requested nor received, -1 if none
+    private int nextFree(int from, int to) {
+        int i = from;
+        while (i < to) {
+            int word = i >>> 6;
+            long free = ~(requested[word] | received[word]) & (-1L << i);
+            if (free != 0) {
+                int number = (word << 6) + Long.numberOfTrailingZeros(free);
+                return number < to ? number : -1;
+            }
+            i = (word + 1) << 6;
+        }
+        return -1;
+    }
+
+    private static boolean get(long[] bits, int i) {
+        return (bits[i >>> 6] & (1L << i)) != 0;
+    }
+
+    private static void set(long[] bits, int i) {
+        bits[i >>> 6] |= 1L << i;
+    }
+
+    private static void clear(long[] bits, int i) {
+        bits[i >>> 6] &= ~(1L << i);
+    }
+}
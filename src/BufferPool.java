@@ -0,0 +1,90 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct ByteBuffers in power-of-two size classes from 64 bytes to 64 KiB. Direct buffers
+ * let channels read and write without the JDK copying through a temporary direct buffer. Each
+ * class keeps a bounded number of free buffers; larger requests are allocated and dropped unpooled.
+ * Each selector thread also gets one receive buffer of the largest class, shared by all its channels.
+ */
+public class BufferPool {
+    private static final int MIN_SHIFT = 6;  //64 B
+    private static final int MAX_SHIFT = 16; //64 KiB
+    public static final int MAX_POOLED_SIZE = 1 << MAX_SHIFT;
+    private static final int MAX_FREE_PER_CLASS = 1024;
+
+    private static BufferPool instance;
+
+    private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+    private final AtomicInteger[] freeCounts;
+    private final ThreadLocal<ByteBuffer> receiveBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(MAX_POOLED_SIZE));
+
+    public BufferPool() {
+        int classes = MAX_SHIFT - MIN_SHIFT + 1;
+        free = newQueues(classes);
+        freeCounts = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            free[i] = new ConcurrentLinkedQueue<>();
+            freeCounts[i] = new AtomicInteger();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ConcurrentLinkedQueue<ByteBuffer>[] newQueues(int count) {
+        return (ConcurrentLinkedQueue<ByteBuffer>[]) new ConcurrentLinkedQueue<?>[count];
+    }
+
+    public static synchronized BufferPool getInstance() {
+        if (instance == null) {
+            instance = new BufferPool();
+        }
+        return instance;
+    }
+
+    /**
+     * Returns a cleared direct buffer with its limit set to size. Give it back with {@link #release}.
+     */
+    public ByteBuffer lease(int size) {
+        if (size > MAX_POOLED_SIZE) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        int sizeClass = sizeClass(size);
+        ByteBuffer buffer = free[sizeClass].poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(1 << (sizeClass + MIN_SHIFT));
+        } else {
+            freeCounts[sizeClass].decrementAndGet();
+        }
+        return buffer.clear().limit(size);
+    }
+
+    /**
+     * Returns a leased buffer to the pool. The caller must not touch it afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (!buffer.isDirect() || buffer.isReadOnly() || capacity > MAX_POOLED_SIZE || Integer.bitCount(capacity) != 1
+                || capacity < 1 << MIN_SHIFT) {
+            return;
+        }
+        int sizeClass = sizeClass(capacity);
+        if (freeCounts[sizeClass].incrementAndGet() > MAX_FREE_PER_CLASS) {
+            freeCounts[sizeClass].decrementAndGet();
+            return;
+        }
+        free[sizeClass].add(buffer);
+    }
+
+    /**
+     * Receive buffer of the calling thread, only valid until the thread's next receive.
+     */
+    public ByteBuffer receiveBuffer() {
+        return receiveBuffers.get().clear();
+    }
+
+    private static int sizeClass(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1 << MIN_SHIFT) - 1);
+        return shift - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,21 @@
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Receives readiness events for a channel registered with {@link SelectorManager}.
+ */
+public interface ChannelHandler {
+    void handleReady(SelectionKey key) throws IOException;
+
+    /**
+     * Called on the selector thread when {@link #handleReady} threw. Closes the channel by default.
+     */
+    default void handleFailure(SelectionKey key, Exception e) {
+        System.err.println("Closing " + key.channel() + " after handler failure: " + e);
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,159 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Lazy index over the files of a multi-file torrent. Only lengths (as a prefix sum of offsets)
+ * and the position of each file's path list in the source buffer are kept; paths are decoded
+ * when a file is asked for. Mapping a torrent-wide byte offset to its file is a binary search.
+ */
+public final class FileIndex extends AbstractList<TorrentMetaData.MultiModeInfo.File> {
+    private final ByteBuffer source;
+    private final long[] offsets; //offsets[i] is where file i starts, offsets[size] is the total length
+    private final int[] pathPositions;
+    private final int size;
+
+    FileIndex(ByteBuffer source, long[] offsets, int[] pathPositions, int size) {
+        this.source = source;
+        this.offsets = offsets;
+        this.pathPositions = pathPositions;
+        this.size = size;
+    }
+
+    /**
+     * Reads the value of the info dictionary's "files" key, recording lengths and path positions only.
+     */
+    static FileIndex read(BencodeReader reader) {
+        if (reader.next() != BencodeReader.Token.LIST_START) {
+            throw new BencodeException("Expected a list of files at position " + reader.position());
+        }
+        long[] offsets = new long[16];
+        int[] pathPositions = new int[16];
+        int size = 0;
+        for (BencodeReader.Token token = reader.next(); token != BencodeReader.Token.END; token = reader.next()) {
+            if (token != BencodeReader.Token.DICT_START) {
+                throw new BencodeException("File entry " + size + " is not a dictionary at position " + reader.position());
+            }
+            long length = -1;
+            int pathPosition = -1;
+            while (reader.next() == BencodeReader.Token.KEY) {
+                if (reader.textEquals("length")) {
+                    length = reader.readLong();
+                } else if (reader.textEquals("path")) {
+                    pathPosition = reader.position();
+                    reader.skipValue();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            if (length < 0 || pathPosition < 0) {
+                throw new BencodeException("File entry " + size + " needs a length and a path");
+            }
+            if (size + 1 >= offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                pathPositions = Arrays.copyOf(pathPositions, pathPositions.length * 2);
+            }
+            pathPositions[size] = pathPosition;
+            offsets[size + 1] = offsets[size] + length;
+            size++;
+        }
+        return new FileIndex(reader.buffer(), offsets, pathPositions, size);
+    }
+
+    //the index arrays only, the paths stay in the .torrent file
+    void write(DataOutput output) throws IOException {
+        output.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            output.writeLong(offsets[i + 1]);
+            output.writeInt(pathPositions[i]);
+        }
+    }
+
+    static FileIndex read(DataInput input, ByteBuffer source) throws IOException {
+        int size = input.readInt();
+        long[] offsets = new long[size + 1];
+        int[] pathPositions = new int[size];
+        for (int i = 0; i < size; i++) {
+            offsets[i + 1] = input.readLong();
+            pathPositions[i] = input.readInt();
+        }
+        return new FileIndex(source, offsets, pathPositions, size);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public TorrentMetaData.MultiModeInfo.File get(int index) {
+        return new TorrentMetaData.MultiModeInfo.File(length(index), path(index));
+    }
+
+    public long length(int index) {
+        checkIndex(index);
+        return offsets[index + 1] - offsets[index];
+    }
+
+    public long offset(int index) {
+        checkIndex(index);
+        return offsets[index];
+    }
+
+    public long totalLength() {
+        return offsets[size];
+    }
+
+    /**
+     * Index of the file containing the given torrent-wide byte offset.
+     */
+    public int fileAt(long byteOffset) {
+        if (byteOffset < 0 || byteOffset >= totalLength()) {
+            throw new IndexOutOfBoundsException("Offset " + byteOffset + " out of " + totalLength());
+        }
+        //last file starting at or before the offset, zero-length files resolve to their successor
+        int low = 0;
+        int high = size - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (offsets[mid] <= byteOffset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    public List<String> pathElements(int index) {
+        checkIndex(index);
+        BencodeReader reader = new BencodeReader(source, pathPositions[index]);
+        if (reader.next() != BencodeReader.Token.LIST_START) {
+            throw new BencodeException("Expected a path list at position " + pathPositions[index]);
+        }
+        List<String> elements = new ArrayList<>();
+        for (BencodeReader.Token token = reader.next(); token != BencodeReader.Token.END; token = reader.next()) {
+            if (token != BencodeReader.Token.BYTES) {
+                throw new BencodeException("Path element is not a byte string at position " + reader.position());
+            }
+            elements.add(reader.text());
+        }
+        return elements;
+    }
+
+    //path relative to the torrent's root directory, elements joined with '/'
+    public String path(int index) {
+        return String.join("/", pathElements(index));
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("File index " + index + " out of " + size);
+        }
+    }
+}
@@ -0,0 +1,478 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking HTTP(S) tracker client. Requests go through the shared {@link SingletonHttpClient},
+ * which keeps HTTP/1.1 connections to each tracker host alive between announces; at most
+ * {@link #MAX_IN_FLIGHT_PER_HOST} requests per host are outstanding, the rest wait in a queue.
+ * The response body is collected straight into one buffer and read with {@link BencodeReader},
+ * handling both the compact and the dictionary peer model.
+ */
+public class HttpTrackerClient implements TrackerClient {
+    private static final int MAX_IN_FLIGHT_PER_HOST = 4;
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+    //a tracker response is a few KiB, anything far beyond that is not a tracker response
+    private static final int MAX_RESPONSE_SIZE = 4 * 1024 * 1024;
+    private static final int DEFAULT_NUMWANT = 50;
+    private static final int port = 6881;
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private static final Random RANDOM = new Random();
+    private static final Map<String, HostLimiter> HOSTS = new ConcurrentHashMap<>();
+
+    private final String announceUrl;
+    private final URI uri;
+    private final String host;
+    private final byte[] peerId;
+    private final byte[] infoHash;
+    private final int key = RANDOM.nextInt();
+    private long uploaded = 0;
+    private long downloaded = 0;
+    private long left;
+
+    //state guarded by 'this'
+    private TrackerEvent event = TrackerEvent.STARTED;
+    private Status status = Status.INITIALIZING;
+    private String trackerId;
+    private int interval;
+    private int minInterval;
+    private int seeders;
+    private int leechers;
+    private final PeerSet peers = new PeerSet();
+    private int generation; //replies of superseded announces are ignored
+    private boolean cancelled;
+    private AnnounceListener listener;
+
+    public HttpTrackerClient(String announceUrl, byte[] peerId, byte[] infoHash, long size) {
+        this.announceUrl = announceUrl;
+        this.uri = URI.create(announceUrl);
+        if (uri.getHost() == null) {
+            throw new IllegalArgumentException("No host in announce URL: " + announceUrl);
+        }
+        this.host = uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+        this.peerId = peerId;
+        this.infoHash = infoHash;
+        this.left = size;
+    }
+
+    @Override
+    public byte[] infoHash() {
+        return infoHash;
+    }
+
+    @Override
+    public Object trackerKey() {
+        return host;
+    }
+
+    @Override
+    public String announceUrl() {
+        return announceUrl;
+    }
+
+    @Override
+    public synchronized Status status() {
+        return status;
+    }
+
+    public synchronized String trackerId() {
+        return trackerId;
+    }
+
+    public synchronized int interval() {
+        return interval;
+    }
+
+    public synchronized int minInterval() {
+        return minInterval;
+    }
+
+    public synchronized int seeders() {
+        return seeders;
+    }
+
+    public synchronized int leechers() {
+        return leechers;
+    }
+
+    @Override
+    public synchronized void setAnnounceListener(AnnounceListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Announces STARTED, then the AnnounceScheduler re-announces at the tracker's interval.
+     */
+    public void startAnnouncing() throws IOException {
+        AnnounceScheduler.getInstance().start(this);
+    }
+
+    @Override
+    public synchronized void announce(TrackerEvent event) {
+        //a new announce supersedes one still waiting for its reply, see send()
+        if (event == TrackerEvent.COMPLETED) {
+            left = 0;
+        }
+        this.event = event;
+        cancelled = false;
+        int sent = ++generation;
+        HttpRequest request = HttpRequest.newBuilder()
+                .GET()
+                .header("User-Agent", "BitTorrent/1.0")
+                .timeout(REQUEST_TIMEOUT)
+                .uri(URI.create(buildFullUrl(event)))
+                .build();
+        HOSTS.computeIfAbsent(host, h -> new HostLimiter()).submit(() -> send(request, sent));
+    }
+
+    @Override
+    public synchronized void cancel() {
+        cancelled = true;
+        generation++;
+    }
+
+    //runs once the host has a free slot, must always end with release()
+    private CompletableFuture<?> send(HttpRequest request, int sent) {
+        synchronized (this) {
+            if (sent != generation) {
+                return CompletableFuture.completedFuture(null);
+            }
+        }
+        //the host slot follows the exchange itself, not a stage depending on it. A superseded
+        //exchange is not cancelled: that completes the future at once while the request may still
+        //be on the wire, it runs to the end (at most REQUEST_TIMEOUT) and its reply is ignored
+        CompletableFuture<HttpResponse<ByteBuffer>> exchange = SingletonHttpClient.getClient()
+                .sendAsync(request, responseInfo -> new BodyCollector(responseInfo));
+        exchange.thenAccept(response -> handleResponse(response, sent))
+                .exceptionally(throwable -> {
+                    Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+                    failed(sent, Status.OFFLINE, cause.getClass().getSimpleName() + ": " + cause.getMessage());
+                    return null;
+                });
+        return exchange;
+    }
+
+    private void handleResponse(HttpResponse<ByteBuffer> response, int sent) {
+        if (response.statusCode() != 200) {
+            failed(sent, Status.REFUSED, "HTTP error: " + response.statusCode());
+            return;
+        }
+        AnnounceListener notify;
+        boolean working;
+        boolean reschedule;
+        synchronized (this) {
+            if (sent != generation) {
+                return;
+            }
+            try {
+                String failure = parse(response.body());
+                if (failure != null) {
+                    status = Status.REFUSED;
+                    System.out.println("Tracker " + announceUrl + " refused: " + failure);
+                }
+            } catch (BencodeException | TrackerException e) {
+                status = Status.UNREGISTERED;
+                System.out.println("Invalid response from " + announceUrl + ": " + e.getMessage());
+            }
+            working = status == Status.WORKING;
+            if (!working) {
+                notify = null;
+                reschedule = false;
+            } else {
+                PeerStore.forTorrent(infoHash).addAll(peers, announceUrl);
+                //STARTED and COMPLETED are sent once, later announces are regular ones
+                reschedule = event != TrackerEvent.STOPPED;
+                if (reschedule) {
+                    event = TrackerEvent.NONE;
+                }
+                notify = listener;
+            }
+        }
+        if (!working) {
+            failed(sent, null, null);
+            return;
+        }
+        if (reschedule) {
+            try {
+                AnnounceScheduler.getInstance().announced(this, interval(), minInterval());
+            } catch (IOException e) {
+                System.out.println("Failed to schedule re-announce to " + announceUrl + ": " + e.getMessage());
+            }
+        }
+        if (notify != null) {
+            notify.announced(this);
+        }
+    }
+
+    //returns the failure reason if the tracker sent one
+    private String parse(ByteBuffer body) {
+        BencodeReader reader = new BencodeReader(body);
+        if (reader.next() != BencodeReader.Token.DICT_START) {
+            throw new TrackerException("Tracker response is not a dictionary");
+        }
+        peers.clear();
+        //pick the fields we need and skip everything else without decoding it
+        while (reader.next() == BencodeReader.Token.KEY) {
+            if (reader.textEquals("failure reason")) {
+                return reader.readText();
+            } else if (reader.textEquals("warning message")) {
+                System.out.println("Tracker " + announceUrl + " warns: " + reader.readText());
+            } else if (reader.textEquals("interval")) {
+                interval = toInt(reader.readLong());
+            } else if (reader.textEquals("min interval")) {
+                minInterval = toInt(reader.readLong());
+            } else if (reader.textEquals("tracker id")) {
+                trackerId = reader.readText();
+            } else if (reader.textEquals("complete")) {
+                seeders = toInt(reader.readLong());
+            } else if (reader.textEquals("incomplete")) {
+                leechers = toInt(reader.readLong());
+            } else if (reader.textEquals("peers")) {
+                BencodeReader.Token token = reader.next();
+                if (token == BencodeReader.Token.BYTES) {
+                    peers.addCompact(reader.bytes());
+                } else if (token == BencodeReader.Token.LIST_START) {
+                    readPeerDictionaries(reader);
+                } else {
+                    throw new TrackerException("Peers is neither a string nor a list");
+                }
+            } else {
+                reader.skipValue();
+            }
+        }
+        status = Status.WORKING;
+        return null;
+    }
+
+    //dictionary model: a list of {peer id, ip, port}, only IPv4 literals are kept
+    private void readPeerDictionaries(BencodeReader reader) {
+        BencodeReader.Token token;
+        while ((token = reader.next()) != BencodeReader.Token.END) {
+            if (token != BencodeReader.Token.DICT_START) {
+                if (token == BencodeReader.Token.LIST_START) {
+                    reader.skipContainer();
+                }
+                continue;
+            }
+            int ip = 0;
+            boolean validIp = false;
+            int peerPort = 0;
+            while (reader.next() == BencodeReader.Token.KEY) {
+                if (reader.textEquals("ip")) {
+                    BencodeString address = reader.readBytes();
+                    ip = parseIpv4(address);
+                    validIp = ip != 0 || address.textEquals("0.0.0.0");
+                } else if (reader.textEquals("port")) {
+                    peerPort = (int) reader.readLong();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            if (validIp && peerPort > 0 && peerPort <= 0xFFFF) {
+                peers.add(ip, peerPort);
+            }
+        }
+    }
+
+    //returns 0 for anything that is not a dotted IPv4 literal
+    private static int parseIpv4(BencodeString text) {
+        int address = 0;
+        int octet = 0;
+        int digits = 0;
+        int dots = 0;
+        for (int i = 0; i < text.length(); i++) {
+            int c = text.byteAt(i);
+            if (c == '.') {
+                if (digits == 0 || ++dots > 3) {
+                    return 0;
+                }
+                address = address << 8 | octet;
+                octet = 0;
+                digits = 0;
+            } else if (c >= '0' && c <= '9' && digits < 3) {
+                octet = octet * 10 + (c - '0');
+                digits++;
+                if (octet > 255) {
+                    return 0;
+                }
+            } else {
+                return 0;
+            }
+        }
+        return dots == 3 && digits > 0 ? address << 8 | octet : 0;
+    }
+
+    private void failed(int sent, Status failure, String message) {
+        AnnounceListener notify;
+        boolean retry;
+        synchronized (this) {
+            if (sent != generation) {
+                return;
+            }
+            if (failure != null) {
+                status = failure;
+                System.out.println("Failed to announce to " + announceUrl + ": " + message);
+            }
+            notify = listener;
+            retry = event != TrackerEvent.STOPPED && !cancelled;
+        }
+        if (notify != null) {
+            notify.announceFailed(this, status());
+        }
+        if (retry) {
+            try {
+                AnnounceScheduler.getInstance().failed(this);
+            } catch (IOException e) {
+                System.out.println("Failed to schedule announce retry for " + announceUrl + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private String buildFullUrl(TrackerEvent event) {
+        StringBuilder bd = new StringBuilder(announceUrl);
+        bd.append(announceUrl.indexOf('?') < 0 ? '?' : '&');
+        bd.append("info_hash=");
+        urlEncode(bd, infoHash);
+        bd.append("&peer_id=");
+        urlEncode(bd, peerId);
+        bd.append("&port=").append(port)
+                .append("&uploaded=").append(uploaded)
+                .append("&downloaded=").append(downloaded)
+                .append("&left=").append(left)
+                .append("&compact=1")
+                .append("&numwant=").append(event == TrackerEvent.STOPPED ? 0 : DEFAULT_NUMWANT)
+                .append("&key=").append(Integer.toHexString(key));
+        if (event != TrackerEvent.NONE) {
+            bd.append("&event=").append(event.getStringValue());
+        }
+        if (trackerId != null) {
+            bd.append("&trackerid=");
+            urlEncode(bd, trackerId.getBytes(StandardCharsets.UTF_8));
+        }
+        return bd.toString();
+    }
+
+    private static void urlEncode(StringBuilder bd, byte[] bytes) {
+        for (byte b : bytes) {
+            int c = b & 0xFF;
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '.' || c == '_' || c == '~') {
+                bd.append((char) c);
+            } else {
+                bd.append('%').append(HEX[c >>> 4]).append(HEX[c & 0xF]);
+            }
+        }
+    }
+
+    private static int toInt(long value) {
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value));
+    }
+
+    //bounds the requests in flight to one tracker host, later requests wait for a free slot
+    private static final class HostLimiter {
+        private final Queue<Supplier<CompletableFuture<?>>> waiting = new ArrayDeque<>();
+        private int inFlight;
+
+        void submit(Supplier<CompletableFuture<?>> request) {
+            synchronized (this) {
+                if (inFlight >= MAX_IN_FLIGHT_PER_HOST) {
+                    waiting.add(request);
+                    return;
+                }
+                inFlight++;
+            }
+            start(request);
+        }
+
+        private void start(Supplier<CompletableFuture<?>> request) {
+            CompletableFuture<?> future;
+            try {
+                future = request.get();
+            } catch (RuntimeException e) {
+                System.out.println("Failed to send tracker request: " + e.getMessage());
+                release();
+                return;
+            }
+            future.whenComplete((result, error) -> release());
+        }
+
+        private void release() {
+            Supplier<CompletableFuture<?>> next;
+            synchronized (this) {
+                next = waiting.poll();
+                if (next == null) {
+                    inFlight--;
+                    return;
+                }
+            }
+            start(next);
+        }
+    }
+
+    //collects the body into a single buffer sized from Content-Length, no intermediate byte arrays
+    private static final class BodyCollector implements HttpResponse.BodySubscriber<ByteBuffer> {
+        private final CompletableFuture<ByteBuffer> result = new CompletableFuture<>();
+        private ByteBuffer body;
+        private Flow.Subscription subscription;
+
+        BodyCollector(HttpResponse.ResponseInfo responseInfo) {
+            long length = responseInfo.headers().firstValueAsLong("Content-Length").orElse(1024);
+            body = ByteBuffer.allocate((int) Math.min(Math.max(length, 0), MAX_RESPONSE_SIZE));
+        }
+
+        @Override
+        public CompletionStage<ByteBuffer> getBody() {
+            return result;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> items) {
+            for (ByteBuffer item : items) {
+                if (item.remaining() > body.remaining()) {
+                    int needed = body.position() + item.remaining();
+                    if (needed > MAX_RESPONSE_SIZE) {
+                        subscription.cancel();
+                        result.completeExceptionally(new TrackerException("Tracker response larger than " + MAX_RESPONSE_SIZE + " bytes"));
+                        return;
+                    }
+                    ByteBuffer larger = ByteBuffer.allocate(Math.min(MAX_RESPONSE_SIZE, Math.max(needed, body.capacity() * 2)));
+                    larger.put(body.flip());
+                    body = larger;
+                }
+                body.put(item);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            result.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            result.complete(body.flip());
+        }
+    }
+}
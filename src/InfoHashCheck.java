@@ -0,0 +1,143 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Checks the infohash of {@link Bencode#parse}. The torrents shipped with the repo are compared
+ * with their published infohashes, so a bug shared by the decoder and encoder cannot hide. Others
+ * are compared with the old way of computing it, SHA-1 over the re-encoded info dictionary: for a
+ * canonically encoded torrent the two must agree; when the file is not canonical (keys out of
+ * order, as some creators write them) re-encoding changes the bytes and parse must hash the raw
+ * span instead. The raw span is located by a walker independent of {@link BencodeReader}.
+ *
+ * Usage: InfoHashCheck [file.torrent ...], by default src/file.torrent, ./file.torrent and a
+ * hand-built multi-file torrent with unsorted keys. Exits with status 1 on a mismatch.
+ */
+public class InfoHashCheck {
+    private static final HexFormat HEX = HexFormat.of();
+    //by normalized path
+    private static final Map<String, String> KNOWN = Map.of(
+            "file.torrent", "131e6e4568df9fcb60eb3ef74792699891e670fd",
+            "src/file.torrent", "6341d137af4b89df7594e4466313b7f4540cdc59");
+
+    public static void main(String[] args) throws Exception {
+        Map<String, byte[]> torrents = new LinkedHashMap<>();
+        if (args.length > 0) {
+            for (String arg : args) {
+                torrents.put(arg, Files.readAllBytes(Path.of(arg)));
+            }
+        } else {
+            for (String name : new String[]{"./src/file.torrent", "./file.torrent"}) {
+                Path path = Path.of(name);
+                if (Files.exists(path)) {
+                    torrents.put(name, Files.readAllBytes(path));
+                }
+            }
+            torrents.put("unsorted-multi-file", unsortedMultiFileTorrent());
+        }
+
+        boolean passed = true;
+        for (Map.Entry<String, byte[]> torrent : torrents.entrySet()) {
+            passed &= check(torrent.getKey(), torrent.getValue());
+        }
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean check(String name, byte[] data) throws NoSuchAlgorithmException {
+        byte[] raw = rawInfo(data);
+        Map<?, ?> decoded = (Map<?, ?>) Bencode.decode(data);
+        byte[] reencoded = Bencode.encode(decoded.get("info"));
+        boolean canonical = MessageDigest.isEqual(raw, reencoded);
+        String known = KNOWN.get(Path.of(name).normalize().toString());
+        byte[] expected = known != null ? HEX.parseHex(known) : sha1(canonical ? reencoded : raw);
+        byte[] actual = Bencode.parse(ByteBuffer.wrap(data)).infoHash();
+        boolean ok = MessageDigest.isEqual(expected, actual);
+        if (!canonical) {
+            //the old hash must differ, otherwise the case proves nothing
+            ok &= !MessageDigest.isEqual(sha1(reencoded), actual);
+        }
+        System.out.printf("%s %-24s %s %s%s%n", ok ? "OK  " : "FAIL", name, canonical ? "canonical    " : "non-canonical", HEX.formatHex(actual), known != null ? " (known)" : "");
+        if (!ok) {
+            System.out.println("     expected " + HEX.formatHex(expected));
+        }
+        return ok;
+    }
+
+    //bytes of the value of the top level "info" key
+    private static byte[] rawInfo(byte[] data) {
+        if (data[0] != 'd') {
+            throw new BencodeException("Torrent file is not a dictionary");
+        }
+        int position = 1;
+        while (data[position] != 'e') {
+            int keyEnd = end(data, position);
+            String key = new String(data, position, keyEnd - position, StandardCharsets.ISO_8859_1);
+            int valueEnd = end(data, keyEnd);
+            if (key.endsWith(":info")) {
+                byte[] info = new byte[valueEnd - keyEnd];
+                System.arraycopy(data, keyEnd, info, 0, info.length);
+                return info;
+            }
+            position = valueEnd;
+        }
+        throw new BencodeException("Torrent file has no info dictionary");
+    }
+
+    //position just past the value starting at the given position
+    private static int end(byte[] data, int position) {
+        switch (data[position]) {
+            case 'i':
+                while (data[position] != 'e') {
+                    position++;
+                }
+                return position + 1;
+            case 'l':
+            case 'd':
+                position++;
+                while (data[position] != 'e') {
+                    position = end(data, position);
+                }
+                return position + 1;
+            default:
+                int colon = position;
+                while (data[colon] != ':') {
+                    colon++;
+                }
+                int length = Integer.parseInt(new String(data, position, colon - position, StandardCharsets.US_ASCII));
+                return colon + 1 + length;
+        }
+    }
+
+    //written by hand: the encoder would sort the keys
+    private static byte[] unsortedMultiFileTorrent() {
+        byte[] pieces = new byte[2 * PieceHashTable.HASH_LENGTH];
+        for (int i = 0; i < pieces.length; i++) {
+            pieces[i] = (byte) (i * 37);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(ascii("d8:announce39:udp://tracker.example.org:6969/announce4:info"));
+        out.writeBytes(ascii("d6:pieces" + pieces.length + ":"));
+        out.writeBytes(pieces);
+        out.writeBytes(ascii("12:piece lengthi16384e4:name5:album5:files"));
+        out.writeBytes(ascii("ld4:pathl5:disc17:one.mp3e6:lengthi20000eed6:lengthi1000e4:pathl9:notes.txteee"));
+        out.writeBytes(ascii("e13:creation datei1700000000ee"));
+        return out.toByteArray();
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] sha1(byte[] data) throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance("SHA-1").digest(data);
+    }
+}
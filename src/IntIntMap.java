@@ -0,0 +1,133 @@
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from primitive int keys to primitive int values, with linear probing
+ * and backward-shift deletion like {@link IntObjectMap}. Not thread safe.
+ */
+public class IntIntMap {
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private int[] keys;
+    private int[] values;
+    private boolean[] used;
+    private int mask;
+    private int size;
+
+    public IntIntMap() {
+        this(16);
+    }
+
+    public IntIntMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        keys = new int[capacity];
+        values = new int[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getOrDefault(int key, int defaultValue) {
+        for (int i = slot(key); used[i]; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+        }
+        return defaultValue;
+    }
+
+    public boolean containsKey(int key) {
+        for (int i = slot(key); used[i]; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void put(int key, int value) {
+        int i = slot(key);
+        for (; used[i]; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        used[i] = true;
+        if (++size > (mask + 1) * LOAD_FACTOR) {
+            resize();
+        }
+    }
+
+    /**
+     * True if the key was present.
+     */
+    public boolean remove(int key) {
+        for (int i = slot(key); used[i]; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                shiftBack(i);
+                size--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    //fills the hole at 'free' with a later entry of the same probe run, until the run ends
+    private void shiftBack(int free) {
+        int i = free;
+        while (true) {
+            i = (i + 1) & mask;
+            if (!used[i]) {
+                break;
+            }
+            int home = slot(keys[i]);
+            //move the entry if its home slot is not in the (free, i] range
+            if (((i - home) & mask) >= ((i - free) & mask)) {
+                keys[free] = keys[i];
+                values[free] = values[i];
+                free = i;
+            }
+        }
+        used[free] = false;
+    }
+
+    private void resize() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        boolean[] oldUsed = used;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        used = new boolean[oldUsed.length * 2];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                int j = slot(oldKeys[i]);
+                while (used[j]) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+                used[j] = true;
+            }
+        }
+    }
+
+    private int slot(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,269 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * LRU cache of parsed torrents, looked up by infohash or by .torrent path (valid while the file's
+ * modification time is unchanged). Bounded by entry count and by an estimated weight in bytes.
+ * A snapshot of the cache can be saved and loaded again on restart: it holds the decoded scalar
+ * fields and the offsets of pieces and file paths inside each .torrent file, so loading only maps
+ * the files and never decodes them again.
+ */
+public class MetaDataCache {
+    private static final int DEFAULT_MAX_ENTRIES = 4096;
+    private static final long DEFAULT_MAX_WEIGHT = 256L * 1024 * 1024;
+    private static final int SNAPSHOT_MAGIC = 0x544d4331; // "TMC1"
+    private static final int SINGLE_MODE = 0;
+    private static final int MULTI_MODE = 1;
+
+    private static MetaDataCache instance;
+
+    private final int maxEntries;
+    private final long maxWeight;
+    private long weight;
+    //access ordered, the eldest entry is the least recently used
+    private final LinkedHashMap<BencodeString, Entry> byInfoHash = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Path, Entry> byPath = new HashMap<>();
+
+    private record Entry(Path path, long lastModified, long fileSize, TorrentMetaData metaData, long weight) {
+    }
+
+    public MetaDataCache(int maxEntries, long maxWeight) {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+    }
+
+    public static synchronized MetaDataCache getInstance() {
+        if (instance == null) {
+            instance = new MetaDataCache(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_WEIGHT);
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the cached metadata for the file, parsing it if it is missing or has been modified.
+     */
+    public TorrentMetaData get(Path path) throws IOException {
+        path = path.toAbsolutePath().normalize();
+        long lastModified = Files.getLastModifiedTime(path).toMillis();
+        synchronized (this) {
+            Entry entry = byPath.get(path);
+            if (entry != null && entry.lastModified() == lastModified) {
+                byInfoHash.get(BencodeString.of(entry.metaData().infoHash())); //mark as recently used
+                return entry.metaData();
+            }
+        }
+        //parse outside the lock, a concurrent parse of the same file just replaces the entry
+        TorrentMetaData metaData = Bencode.parse(path.toString());
+        put(path, lastModified, Files.size(path), metaData);
+        return metaData;
+    }
+
+    public synchronized TorrentMetaData get(byte[] infoHash) {
+        Entry entry = byInfoHash.get(BencodeString.of(infoHash));
+        return entry == null ? null : entry.metaData();
+    }
+
+    public synchronized void put(Path path, long lastModified, long fileSize, TorrentMetaData metaData) {
+        path = path.toAbsolutePath().normalize();
+        Entry entry = new Entry(path, lastModified, fileSize, metaData, weightOf(metaData));
+        remove(byPath.get(path));
+        remove(byInfoHash.get(BencodeString.of(metaData.infoHash())));
+        byInfoHash.put(BencodeString.of(metaData.infoHash()), entry);
+        byPath.put(path, entry);
+        weight += entry.weight();
+        evict();
+    }
+
+    public synchronized int size() {
+        return byInfoHash.size();
+    }
+
+    public synchronized long weight() {
+        return weight;
+    }
+
+    private void remove(Entry entry) {
+        if (entry == null) {
+            return;
+        }
+        byInfoHash.remove(BencodeString.of(entry.metaData().infoHash()));
+        byPath.remove(entry.path());
+        weight -= entry.weight();
+    }
+
+    private void evict() {
+        Iterator<Entry> eldest = byInfoHash.values().iterator();
+        while ((byInfoHash.size() > maxEntries || weight > maxWeight) && eldest.hasNext()) {
+            Entry entry = eldest.next();
+            eldest.remove();
+            byPath.remove(entry.path());
+            weight -= entry.weight();
+        }
+    }
+
+    //rough footprint: piece hashes and file index arrays dominate, plus a fixed overhead for the record
+    private static long weightOf(TorrentMetaData metaData) {
+        long weight = 512L + (long) metaData.pieces().pieceCount() * PieceHashTable.HASH_LENGTH;
+        if (metaData.multiModeInfo() != null) {
+            weight += (long) metaData.multiModeInfo().files().size() * (Long.BYTES + Integer.BYTES);
+        }
+        return weight;
+    }
+
+    public synchronized void saveSnapshot(Path snapshot) throws IOException {
+        //only entries whose tables point into their .torrent file can be restored without decoding
+        List<Entry> entries = new ArrayList<>();
+        for (Entry entry : byInfoHash.values()) {
+            if (entry.metaData().pieces().sourceOffset() >= 0) {
+                entries.add(entry);
+            }
+        }
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(snapshot)))) {
+            output.writeInt(SNAPSHOT_MAGIC);
+            output.writeInt(entries.size());
+            for (Entry entry : entries) {
+                writeEntry(output, entry);
+            }
+        }
+    }
+
+    /**
+     * Loads the entries of a snapshot whose .torrent files are unchanged, returns how many were loaded.
+     */
+    public int loadSnapshot(Path snapshot) throws IOException {
+        int loaded = 0;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+            if (input.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a metadata cache snapshot: " + snapshot);
+            }
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                if (readEntry(input)) {
+                    loaded++;
+                }
+            }
+        }
+        return loaded;
+    }
+
+    private static void writeEntry(DataOutputStream output, Entry entry) throws IOException {
+        TorrentMetaData metaData = entry.metaData();
+        output.writeUTF(entry.path().toString());
+        output.writeLong(entry.lastModified());
+        output.writeLong(entry.fileSize());
+        output.write(metaData.infoHash());
+        writeString(output, metaData.announce());
+        writeString(output, metaData.comment());
+        writeString(output, metaData.createdBy());
+        writeString(output, metaData.encoding());
+        output.writeBoolean(metaData.creationDate() != null);
+        if (metaData.creationDate() != null) {
+            output.writeLong(metaData.creationDate());
+        }
+        List<List<String>> announceList = metaData.announceList();
+        output.writeInt(announceList == null ? -1 : announceList.size());
+        if (announceList != null) {
+            for (List<String> tier : announceList) {
+                output.writeInt(tier.size());
+                for (String url : tier) {
+                    writeString(output, url);
+                }
+            }
+        }
+        output.writeLong(metaData.pieceLength());
+        output.writeBoolean(metaData.isPrivate());
+        output.writeInt(metaData.pieces().sourceOffset());
+        output.writeInt(metaData.pieces().pieceCount() * PieceHashTable.HASH_LENGTH);
+        if (metaData.singleModeInfo() != null) {
+            output.writeByte(SINGLE_MODE);
+            writeString(output, metaData.singleModeInfo().name());
+            output.writeLong(metaData.singleModeInfo().length());
+        } else {
+            output.writeByte(MULTI_MODE);
+            writeString(output, metaData.multiModeInfo().name());
+            metaData.multiModeInfo().files().write(output);
+        }
+    }
+
+    private boolean readEntry(DataInputStream input) throws IOException {
+        Path path = Path.of(input.readUTF());
+        long lastModified = input.readLong();
+        long fileSize = input.readLong();
+        byte[] infoHash = new byte[20];
+        input.readFully(infoHash);
+        String announce = readString(input);
+        String comment = readString(input);
+        String createdBy = readString(input);
+        String encoding = readString(input);
+        Long creationDate = input.readBoolean() ? input.readLong() : null;
+        List<List<String>> announceList = null;
+        int tiers = input.readInt();
+        if (tiers >= 0) {
+            announceList = new ArrayList<>(tiers);
+            for (int i = 0; i < tiers; i++) {
+                int urls = input.readInt();
+                List<String> tier = new ArrayList<>(urls);
+                for (int j = 0; j < urls; j++) {
+                    tier.add(readString(input));
+                }
+                announceList.add(tier);
+            }
+        }
+        long pieceLength = input.readLong();
+        boolean isPrivate = input.readBoolean();
+        int piecesOffset = input.readInt();
+        int piecesLength = input.readInt();
+
+        //the file has to be mapped before the file index can be restored
+        boolean unchanged = Files.exists(path)
+                && Files.getLastModifiedTime(path).toMillis() == lastModified
+                && Files.size(path) == fileSize;
+        ByteBuffer source = unchanged ? BencodeDecoder.map(path) : ByteBuffer.allocate(0);
+
+        TorrentMetaData.SingleModeInfo singleModeInfo = null;
+        TorrentMetaData.MultiModeInfo multiModeInfo = null;
+        if (input.readByte() == SINGLE_MODE) {
+            singleModeInfo = new TorrentMetaData.SingleModeInfo(readString(input), input.readLong());
+        } else {
+            String name = readString(input);
+            multiModeInfo = new TorrentMetaData.MultiModeInfo(name, FileIndex.read(input, source));
+        }
+        if (!unchanged) {
+            return false;
+        }
+
+        TorrentMetaData metaData = new TorrentMetaData(announce,
+                announceList,
+                creationDate,
+                comment,
+                createdBy,
+                encoding,
+                infoHash,
+                pieceLength,
+                PieceHashTable.of(source, piecesOffset, piecesLength),
+                isPrivate,
+                singleModeInfo,
+                multiModeInfo);
+        put(path, lastModified, fileSize, metaData);
+        return true;
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        output.writeBoolean(value != null);
+        if (value != null) {
+            output.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        return input.readBoolean() ? input.readUTF() : null;
+    }
+}
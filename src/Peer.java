@@ -1,14 +1,68 @@
+/**
+ * View of a packed IPv4 peer (see {@link PeerSet}). The dotted address is only built when asked for.
+ */
 public class Peer {
+    private final long packed;
     private String ip;
-    private int port;
+
+    Peer(long packed) {
+        this.packed = packed;
+    }
+
     public Peer(String ip, int port) {
+        this.packed = PeerSet.pack(parseIpv4(ip), port);
         this.ip = ip;
-        this.port = port;
+    }
+
+    public long packed() {
+        return packed;
+    }
+
+    public String ip() {
+        if (ip == null) {
+            int address = PeerSet.ip(packed);
+            ip = new StringBuilder(15)
+                    .append(address >>> 24).append('.')
+                    .append((address >>> 16) & 0xFF).append('.')
+                    .append((address >>> 8) & 0xFF).append('.')
+                    .append(address & 0xFF)
+                    .toString();
+        }
+        return ip;
+    }
 
+    public int port() {
+        return PeerSet.port(packed);
+    }
+
+    private static int parseIpv4(String ip) {
+        String[] parts = ip.split("\\.");
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("Not an IPv4 address: " + ip);
+        }
+        int address = 0;
+        for (String part : parts) {
+            int octet = Integer.parseInt(part);
+            if (octet < 0 || octet > 255) {
+                throw new IllegalArgumentException("Not an IPv4 address: " + ip);
+            }
+            address = address << 8 | octet;
+        }
+        return address;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Peer other && packed == other.packed;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(packed);
     }
 
     @Override
     public String toString() {
-        return "Peer [ip=" + ip + ", port=" + port + "]";
+        return "Peer [ip=" + ip() + ", port=" + port() + "]";
     }
-}
\ No newline at end of file
+}
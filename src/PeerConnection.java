@@ -0,0 +1,457 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * One peer-wire connection: the protocol state and message encoding and decoding shared by every
+ * {@link PeerIoMode}. Implementations move the bytes, feeding the handshake and each complete
+ * message to {@link #handleHandshake} and {@link #handleMessage} on the connection's reading
+ * thread, and writing what {@link #write} hands them. Messages may be sent from any thread.
+ */
+public abstract class PeerConnection {
+    public static final int CHOKE = 0;
+    public static final int UNCHOKE = 1;
+    public static final int INTERESTED = 2;
+    public static final int NOT_INTERESTED = 3;
+    public static final int HAVE = 4;
+    public static final int BITFIELD = 5;
+    public static final int REQUEST = 6;
+    public static final int PIECE = 7;
+    public static final int CANCEL = 8;
+
+    public static final int MAX_BLOCK_LENGTH = 1 << 14;
+    static final long HANDSHAKE_TIMEOUT_MILLIS = 20_000;
+    static final int HANDSHAKE_LENGTH = 68;
+    //a whole message must fit the selector thread's receive buffer, with room for the bytes read alongside it
+    static final int MAX_MESSAGE_LENGTH = BufferPool.MAX_POOLED_SIZE / 2;
+    //peers drop connections silent for two minutes
+    private static final long KEEP_ALIVE_MILLIS = 90_000;
+    private static final long IDLE_TIMEOUT_MILLIS = 180_000;
+    private static final long TICK_MILLIS = 5_000;
+    private static final byte[] PROTOCOL = "BitTorrent protocol".getBytes(StandardCharsets.US_ASCII);
+
+    enum State { CONNECTING, HANDSHAKING, ACTIVE, CLOSED }
+
+    final PeerWireEngine engine;
+    final Peer peer;
+    final boolean outbound;
+    final BufferPool bufferPool = BufferPool.getInstance();
+    volatile PeerWireEngine.Torrent torrent; //null until an incoming handshake names it
+    volatile State state;
+    volatile long lastReceived;
+    volatile long lastSent;
+    private volatile TimerWheel.Timeout timer;
+    private volatile long handshakeDeadline;
+    private volatile boolean amChoking = true;
+    private volatile boolean amInterested;
+
+    //read side, reading thread only
+    private byte[] remotePeerId;
+    private BitSet peerPieces;
+    private boolean peerChoking = true;
+    private boolean peerInterested;
+    private boolean messageReceived; //a bitfield is only valid as the first message
+
+    PeerConnection(PeerWireEngine engine, Peer peer, PeerWireEngine.Torrent torrent) {
+        this.engine = engine;
+        this.peer = peer;
+        this.torrent = torrent;
+        this.outbound = torrent != null;
+        this.state = outbound ? State.CONNECTING : State.HANDSHAKING;
+        this.lastReceived = this.lastSent = System.currentTimeMillis();
+    }
+
+    public Peer peer() {
+        return peer;
+    }
+
+    public boolean isOutbound() {
+        return outbound;
+    }
+
+    public boolean isActive() {
+        return state == State.ACTIVE;
+    }
+
+    public boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    public TorrentMetaData torrent() {
+        PeerWireEngine.Torrent current = torrent;
+        return current == null ? null : current.metaData();
+    }
+
+    public byte[] remotePeerId() {
+        return remotePeerId;
+    }
+
+    //the read side state below is only meant for the listener callbacks
+
+    public boolean isPeerChoking() {
+        return peerChoking;
+    }
+
+    public boolean isPeerInterested() {
+        return peerInterested;
+    }
+
+    public boolean peerHas(int pieceIndex) {
+        return peerPieces != null && peerPieces.get(pieceIndex);
+    }
+
+    public BitSet peerPieces() {
+        return peerPieces;
+    }
+
+    public boolean isChoking() {
+        return amChoking;
+    }
+
+    public boolean isInterested() {
+        return amInterested;
+    }
+
+    public void choke() {
+        amChoking = true;
+        sendState(CHOKE);
+    }
+
+    public void unchoke() {
+        amChoking = false;
+        sendState(UNCHOKE);
+    }
+
+    public void interested() {
+        amInterested = true;
+        sendState(INTERESTED);
+    }
+
+    public void notInterested() {
+        amInterested = false;
+        sendState(NOT_INTERESTED);
+    }
+
+    public void have(int pieceIndex) {
+        ByteBuffer message = message(HAVE, 4);
+        message.putInt(pieceIndex);
+        send(message);
+    }
+
+    /**
+     * Sends the pieces we have. Only allowed as the first message after the handshake.
+     */
+    public void bitfield(BitSet pieces) {
+        int pieceCount = torrent.pieceCount();
+        ByteBuffer message = message(BITFIELD, (pieceCount + 7) >>> 3);
+        for (int i = 0; i < pieceCount; i += 8) {
+            int bits = 0;
+            for (int b = 0; b < 8; b++) {
+                if (pieces.get(i + b) && i + b < pieceCount) {
+                    bits |= 0x80 >>> b;
+                }
+            }
+            message.put((byte) bits);
+        }
+        send(message);
+    }
+
+    public void request(int pieceIndex, int begin, int length) {
+        sendBlockMessage(REQUEST, pieceIndex, begin, length);
+    }
+
+    public void cancel(int pieceIndex, int begin, int length) {
+        sendBlockMessage(CANCEL, pieceIndex, begin, length);
+    }
+
+    /**
+     * Sends the remaining bytes of the block, the buffer's position is left untouched.
+     */
+    public void piece(int pieceIndex, int begin, ByteBuffer block) {
+        if (block.remaining() > MAX_BLOCK_LENGTH) {
+            throw new PeerWireException("Block too long: " + block.remaining());
+        }
+        ByteBuffer message = message(PIECE, 8 + block.remaining());
+        message.putInt(pieceIndex).putInt(begin).put(block.duplicate());
+        send(message);
+    }
+
+    public void close() {
+        close(null);
+    }
+
+    /**
+     * Messages written or waiting to be written, for callers pacing their sends.
+     */
+    public abstract int queuedMessages();
+
+    /**
+     * Takes ownership of the leased, flipped buffer and writes it after everything sent before.
+     */
+    abstract void write(ByteBuffer message);
+
+    //closes the socket and returns the buffers still held, the state is already CLOSED
+    abstract void closeChannel();
+
+    void startTimer(long handshakeTimeoutMillis) throws IOException {
+        handshakeDeadline = System.currentTimeMillis() + handshakeTimeoutMillis;
+        timer = SelectorManager.getInstance().schedule(Math.min(handshakeTimeoutMillis, TICK_MILLIS), this::tick);
+    }
+
+    //the socket connected, our handshake goes first
+    void connected() {
+        //the timer thread may have closed it on a connect timeout, closed stays closed
+        synchronized (this) {
+            if (state != State.CONNECTING) {
+                return;
+            }
+            handshakeDeadline = System.currentTimeMillis() + HANDSHAKE_TIMEOUT_MILLIS;
+            state = State.HANDSHAKING;
+        }
+        sendHandshake();
+    }
+
+    /**
+     * Checks the peer's handshake at the buffer's position and consumes it. An incoming
+     * connection learns its torrent here and answers with our handshake.
+     */
+    void handleHandshake(ByteBuffer buffer) {
+        int start = buffer.position();
+        buffer.position(start + HANDSHAKE_LENGTH);
+        if (buffer.get(start) != PROTOCOL.length
+                || buffer.slice(start + 1, PROTOCOL.length).compareTo(ByteBuffer.wrap(PROTOCOL)) != 0) {
+            throw new PeerWireException("Not a BitTorrent handshake");
+        }
+        byte[] infoHash = new byte[20];
+        buffer.get(start + 28, infoHash);
+        if (outbound) {
+            if (!Arrays.equals(infoHash, torrent.metaData().infoHash())) {
+                throw new PeerWireException("Peer answered for another torrent");
+            }
+        } else {
+            torrent = engine.torrent(infoHash);
+            if (torrent == null) {
+                throw new PeerWireException("Handshake for an unknown torrent");
+            }
+            sendHandshake();
+        }
+        remotePeerId = new byte[20];
+        buffer.get(start + 48, remotePeerId);
+        if (Arrays.equals(remotePeerId, engine.localPeerId())) {
+            throw new PeerWireException("Connected to ourselves");
+        }
+        peerPieces = new BitSet(torrent.pieceCount());
+        synchronized (this) {
+            if (state != State.HANDSHAKING) {
+                return; //handshake timed out meanwhile
+            }
+            state = State.ACTIVE;
+        }
+        if (outbound) {
+            PeerStore.forTorrent(infoHash).connectionSucceeded(peer.packed());
+        }
+        torrent.listener().connected(this);
+    }
+
+    /**
+     * Handles the message of the given length (after the length prefix) at start.
+     */
+    void handleMessage(ByteBuffer buffer, int start, int length) {
+        PeerWireListener listener = torrent.listener();
+        int id = buffer.get(start);
+        boolean first = !messageReceived;
+        messageReceived = true;
+        switch (id) {
+            case CHOKE -> {
+                peerChoking = true;
+                listener.choked(this);
+            }
+            case UNCHOKE -> {
+                peerChoking = false;
+                listener.unchoked(this);
+            }
+            case INTERESTED -> {
+                peerInterested = true;
+                listener.interested(this);
+            }
+            case NOT_INTERESTED -> {
+                peerInterested = false;
+                listener.notInterested(this);
+            }
+            case HAVE -> {
+                expectLength(id, length, 5);
+                int index = pieceIndex(buffer.getInt(start + 1));
+                if (!peerPieces.get(index)) { //a repeated HAVE must not count the piece twice
+                    peerPieces.set(index);
+                    listener.have(this, index);
+                }
+            }
+            case BITFIELD -> {
+                if (!first) {
+                    throw new PeerWireException("Bitfield is not the first message");
+                }
+                int pieceCount = torrent.pieceCount();
+                expectLength(id, length, 1 + ((pieceCount + 7) >>> 3));
+                BitSet announced = new BitSet(pieceCount);
+                for (int i = 0; i < pieceCount; i += 8) {
+                    int bits = buffer.get(start + 1 + (i >>> 3)) & 0xFF;
+                    while (bits != 0) {
+                        int bit = Integer.numberOfLeadingZeros(bits) - 24;
+                        if (i + bit >= pieceCount) {
+                            throw new PeerWireException("Bitfield has spare bits set");
+                        }
+                        announced.set(i + bit);
+                        bits &= ~(0x80 >>> bit);
+                    }
+                }
+                peerPieces.or(announced);
+                listener.bitfield(this, announced);
+            }
+            case REQUEST, CANCEL -> {
+                expectLength(id, length, 13);
+                int index = pieceIndex(buffer.getInt(start + 1));
+                int begin = buffer.getInt(start + 5);
+                int blockLength = buffer.getInt(start + 9);
+                if (blockLength <= 0 || blockLength > MAX_BLOCK_LENGTH) {
+                    throw new PeerWireException("Invalid block length " + blockLength);
+                }
+                if (id == REQUEST) {
+                    listener.request(this, index, begin, blockLength);
+                } else {
+                    listener.cancel(this, index, begin, blockLength);
+                }
+            }
+            case PIECE -> {
+                if (length < 9) {
+                    throw new PeerWireException("Piece message too short");
+                }
+                int index = pieceIndex(buffer.getInt(start + 1));
+                int begin = buffer.getInt(start + 5);
+                listener.piece(this, index, begin, buffer.slice(start + 9, length - 9));
+            }
+            default -> {
+                //port and extension messages are not supported yet
+            }
+        }
+    }
+
+    static int checkLength(int length) {
+        if (length < 0 || length > MAX_MESSAGE_LENGTH) {
+            throw new PeerWireException("Invalid message length " + length);
+        }
+        return length;
+    }
+
+    private static void expectLength(int id, int length, int expected) {
+        if (length != expected) {
+            throw new PeerWireException("Message " + id + " has length " + length + ", expected " + expected);
+        }
+    }
+
+    private int pieceIndex(int index) {
+        if (index < 0 || index >= torrent.pieceCount()) {
+            throw new PeerWireException("Invalid piece index " + index);
+        }
+        return index;
+    }
+
+    private void sendHandshake() {
+        ByteBuffer handshake = bufferPool.lease(HANDSHAKE_LENGTH);
+        handshake.put((byte) PROTOCOL.length)
+                .put(PROTOCOL)
+                .putLong(0) //reserved, no extensions
+                .put(torrent.metaData().infoHash())
+                .put(engine.localPeerId());
+        write(handshake.flip());
+    }
+
+    private void sendState(int id) {
+        send(message(id, 0));
+    }
+
+    private void sendBlockMessage(int id, int pieceIndex, int begin, int length) {
+        ByteBuffer message = message(id, 12);
+        message.putInt(pieceIndex).putInt(begin).putInt(length);
+        send(message);
+    }
+
+    private void sendKeepAlive() {
+        ByteBuffer message = bufferPool.lease(4);
+        message.putInt(0);
+        send(message);
+    }
+
+    private ByteBuffer message(int id, int payloadLength) {
+        ByteBuffer message = bufferPool.lease(5 + payloadLength);
+        message.putInt(1 + payloadLength).put((byte) id);
+        return message;
+    }
+
+    //only the handshake may go out before both handshakes are done
+    private void send(ByteBuffer message) {
+        State current = state;
+        if (current == State.CONNECTING || current == State.HANDSHAKING) {
+            bufferPool.release(message);
+            throw new PeerWireException("Connection not established yet");
+        }
+        write(message.flip());
+    }
+
+    private void tick() {
+        if (state == State.CLOSED) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (state != State.ACTIVE) {
+            if (now >= handshakeDeadline) {
+                close(new PeerWireException(state == State.CONNECTING ? "Connect timed out" : "Handshake timed out"));
+                return;
+            }
+        } else if (now - lastReceived >= IDLE_TIMEOUT_MILLIS) {
+            close(new PeerWireException("Peer idle for " + (now - lastReceived) / 1000 + "s"));
+            return;
+        } else if (now - lastSent >= KEEP_ALIVE_MILLIS) {
+            sendKeepAlive();
+        }
+        try {
+            timer = SelectorManager.getInstance().schedule(TICK_MILLIS, this::tick);
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    /**
+     * Closes the connection once, from any thread, and tells the listener.
+     */
+    void close(Exception cause) {
+        State previous;
+        synchronized (this) {
+            previous = state;
+            if (previous == State.CLOSED) {
+                return;
+            }
+            state = State.CLOSED;
+        }
+        TimerWheel.Timeout current = timer;
+        if (current != null) {
+            current.cancel();
+        }
+        closeChannel();
+        engine.closed();
+        PeerWireEngine.Torrent closedTorrent = torrent;
+        if (closedTorrent == null) {
+            return; //incoming connection closed before its handshake
+        }
+        if (outbound && previous != State.ACTIVE) {
+            PeerStore.forTorrent(closedTorrent.metaData().infoHash()).connectionFailed(peer.packed());
+        }
+        closedTorrent.listener().disconnected(this, cause);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " [" + peer.ip() + ":" + peer.port() + ", " + state + "]";
+    }
+}
@@ -0,0 +1,98 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps up to {@link #MAX_CONNECTIONS} outgoing connections open for one torrent, topped up every
+ * {@link #REFILL_MILLIS} from the peers its trackers reported to the {@link PeerStore}. Connections
+ * that closed are dropped from the count at the next refill; whether they failed is recorded in
+ * the store by the connection itself, so repeatedly failing peers sink to the end of the candidates.
+ */
+public class PeerConnector {
+    static final int MAX_CONNECTIONS = 50;
+    static final long REFILL_MILLIS = 5_000;
+
+    private final PeerWireEngine engine;
+    private final byte[] infoHash;
+
+    //guarded by 'this'
+    private final Map<Peer, PeerConnection> connections = new HashMap<>();
+    private TimerWheel.Timeout refill;
+    private boolean stopped;
+
+    public PeerConnector(PeerWireEngine engine, byte[] infoHash) {
+        this.engine = engine;
+        this.infoHash = infoHash.clone();
+    }
+
+    public void start() throws IOException {
+        synchronized (this) {
+            stopped = false;
+        }
+        refill();
+    }
+
+    /**
+     * Stops topping up; open connections stay until closed.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (refill != null) {
+            refill.cancel();
+            refill = null;
+        }
+    }
+
+    public synchronized int connectionCount() {
+        connections.values().removeIf(PeerConnection::isClosed);
+        return connections.size();
+    }
+
+    private void refill() throws IOException {
+        List<Peer> fresh = new ArrayList<>();
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            connections.values().removeIf(PeerConnection::isClosed);
+            int wanted = MAX_CONNECTIONS - connections.size();
+            if (wanted > 0) {
+                //connected peers are among the candidates too, ask for enough to skip them
+                for (Peer peer : PeerStore.forTorrent(infoHash).candidates(wanted + connections.size())) {
+                    if (fresh.size() == wanted) {
+                        break;
+                    }
+                    if (!connections.containsKey(peer)) {
+                        fresh.add(peer);
+                    }
+                }
+            }
+        }
+        for (Peer peer : fresh) {
+            try {
+                PeerConnection connection = engine.connect(infoHash, peer);
+                synchronized (this) {
+                    connections.put(peer, connection);
+                }
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Could not connect to " + peer.ip() + ":" + peer.port() + ": " + e.getMessage());
+                PeerStore.forTorrent(infoHash).connectionFailed(peer.packed());
+            }
+        }
+        synchronized (this) {
+            if (!stopped) {
+                refill = SelectorManager.getInstance().schedule(REFILL_MILLIS, this::scheduledRefill);
+            }
+        }
+    }
+
+    private void scheduledRefill() {
+        try {
+            refill();
+        } catch (IOException e) {
+            System.err.println("Peer connector stopped: " + e);
+        }
+    }
+}
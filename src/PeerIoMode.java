@@ -0,0 +1,34 @@
+/**
+ * How peer connections do their I/O, chosen with -Dpeer.io.mode=selector|virtual.
+ */
+public enum PeerIoMode {
+    //every connection is a state machine on the shared selector threads
+    SELECTOR("selector"),
+    //every connection runs blocking code on its own virtual threads
+    VIRTUAL_THREADS("virtual");
+
+    public static final String PROPERTY = "peer.io.mode";
+
+    private final String strValue;
+
+    PeerIoMode(String strValue) {
+        this.strValue = strValue;
+    }
+
+    public String getStringValue() {
+        return strValue;
+    }
+
+    public static PeerIoMode of(String value) {
+        for (PeerIoMode mode : values()) {
+            if (mode.strValue.equalsIgnoreCase(value) || mode.name().equalsIgnoreCase(value)) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown " + PROPERTY + ": " + value);
+    }
+
+    public static PeerIoMode configured() {
+        return of(System.getProperty(PROPERTY, SELECTOR.strValue));
+    }
+}
@@ -0,0 +1,217 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Set of IPv4 peers packed into longs (ip << 16 | port) in an open-addressing table with linear
+ * probing. Adding compact tracker peers and iterating never allocates; {@link Peer} objects are only
+ * created on request. 0.0.0.0:0 is not a valid peer and is used to mark empty slots. Not thread safe.
+ */
+public class PeerSet {
+    public static final int COMPACT_PEER_LENGTH = 6;
+    private static final long EMPTY = 0;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] slots;
+    private int mask;
+    private int size;
+
+    /**
+     * Receives the peers of {@link #forEach}; ip is the IPv4 address in network order as an int.
+     */
+    @FunctionalInterface
+    public interface PeerVisitor {
+        void visit(int ip, int port);
+    }
+
+    public PeerSet() {
+        this(16);
+    }
+
+    public PeerSet(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        slots = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    public static long pack(int ip, int port) {
+        return (ip & 0xFFFFFFFFL) << 16 | (port & 0xFFFF);
+    }
+
+    public static int ip(long peer) {
+        return (int) (peer >>> 16);
+    }
+
+    public static int port(long peer) {
+        return (int) (peer & 0xFFFF);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean add(int ip, int port) {
+        return add(pack(ip, port));
+    }
+
+    /**
+     * Returns false if the peer was already present or is 0.0.0.0:0.
+     */
+    public boolean add(long peer) {
+        if (peer == EMPTY) {
+            return false;
+        }
+        int i = slot(peer);
+        for (; slots[i] != EMPTY; i = (i + 1) & mask) {
+            if (slots[i] == peer) {
+                return false;
+            }
+        }
+        slots[i] = peer;
+        if (++size > (mask + 1) * LOAD_FACTOR) {
+            resize();
+        }
+        return true;
+    }
+
+    /**
+     * Adds peers in the compact 6-byte format (BEP 23) read from buffer[offset, offset + length)
+     * without moving the buffer's position. Returns how many were new.
+     */
+    public int addCompact(ByteBuffer buffer, int offset, int length) {
+        if (length % COMPACT_PEER_LENGTH != 0) {
+            throw new TrackerException("Peer data length is not multiple of 6 bytes");
+        }
+        int added = 0;
+        for (int i = offset; i < offset + length; i += COMPACT_PEER_LENGTH) {
+            if (add(buffer.getInt(i), buffer.getShort(i + 4) & 0xFFFF)) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    public int addCompact(BencodeString compactPeers) {
+        return addCompact(compactPeers.source(), compactPeers.offset(), compactPeers.length());
+    }
+
+    public boolean contains(int ip, int port) {
+        return contains(pack(ip, port));
+    }
+
+    public boolean contains(long peer) {
+        if (peer == EMPTY) {
+            return false;
+        }
+        for (int i = slot(peer); slots[i] != EMPTY; i = (i + 1) & mask) {
+            if (slots[i] == peer) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean remove(long peer) {
+        if (peer == EMPTY) {
+            return false;
+        }
+        for (int i = slot(peer); slots[i] != EMPTY; i = (i + 1) & mask) {
+            if (slots[i] == peer) {
+                shiftBack(i);
+                size--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void clear() {
+        Arrays.fill(slots, EMPTY);
+        size = 0;
+    }
+
+    public void forEach(PeerVisitor visitor) {
+        for (long peer : slots) {
+            if (peer != EMPTY) {
+                visitor.visit(ip(peer), port(peer));
+            }
+        }
+    }
+
+    /*
+     * Cursor iteration without a visitor:
+     * for (int c = set.next(-1); c >= 0; c = set.next(c)) { long peer = set.peerAt(c); }
+     * The cursor is invalidated by add and remove.
+     */
+    public int next(int cursor) {
+        for (int i = cursor + 1; i < slots.length; i++) {
+            if (slots[i] != EMPTY) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public long peerAt(int cursor) {
+        return slots[cursor];
+    }
+
+    /**
+     * Creates a {@link Peer} view of the packed entry at the cursor.
+     */
+    public Peer peer(int cursor) {
+        return new Peer(slots[cursor]);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[");
+        for (int c = next(-1); c >= 0; c = next(c)) {
+            if (builder.length() > 1) {
+                builder.append(", ");
+            }
+            builder.append(peer(c));
+        }
+        return builder.append(']').toString();
+    }
+
+    //fills the hole at 'free' with a later entry of the same probe run, until the run ends
+    private void shiftBack(int free) {
+        int i = free;
+        while (true) {
+            i = (i + 1) & mask;
+            if (slots[i] == EMPTY) {
+                break;
+            }
+            int home = slot(slots[i]);
+            if (((i - home) & mask) >= ((i - free) & mask)) {
+                slots[free] = slots[i];
+                free = i;
+            }
+        }
+        slots[free] = EMPTY;
+    }
+
+    private void resize() {
+        long[] old = slots;
+        slots = new long[old.length * 2];
+        mask = slots.length - 1;
+        for (long peer : old) {
+            if (peer != EMPTY) {
+                int j = slot(peer);
+                while (slots[j] != EMPTY) {
+                    j = (j + 1) & mask;
+                }
+                slots[j] = peer;
+            }
+        }
+    }
+
+    private int slot(long peer) {
+        long h = peer * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,168 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Peers of one torrent, deduplicated by address and shared by every tracker announcing it. Each
+ * entry records the tracker that reported it last, when it was first and last seen, and how many
+ * connection attempts failed in a row. Entries are kept in last-seen order; those not seen within
+ * the maximum age or beyond the cap are evicted from the stale end, so the store stays bounded over
+ * long sessions.
+ */
+public class PeerStore {
+    private static final int DEFAULT_MAX_PEERS = 2000;
+    private static final long DEFAULT_MAX_AGE_MILLIS = 2 * 60 * 60 * 1000L;
+    //a peer failing this many times in a row is dropped until a tracker reports it again
+    static final int MAX_FAILURES = 3;
+
+    private static final Map<BencodeString, PeerStore> STORES = new ConcurrentHashMap<>();
+
+    private final int maxPeers;
+    private final long maxAgeMillis;
+    //packed peer -> entry, insertion ordered by last sighting, the eldest is the stalest
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>();
+
+    private static final class Entry {
+        final long peer;
+        final long firstSeen;
+        long lastSeen;
+        String source;
+        int failures;
+
+        Entry(long peer, String source, long now) {
+            this.peer = peer;
+            this.source = source;
+            this.firstSeen = now;
+            this.lastSeen = now;
+        }
+    }
+
+    public PeerStore(int maxPeers, long maxAgeMillis) {
+        this.maxPeers = maxPeers;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Returns the store of the torrent, creating it on first use.
+     */
+    public static PeerStore forTorrent(byte[] infoHash) {
+        return STORES.computeIfAbsent(BencodeString.of(infoHash), hash -> new PeerStore(DEFAULT_MAX_PEERS, DEFAULT_MAX_AGE_MILLIS));
+    }
+
+    public static void remove(byte[] infoHash) {
+        STORES.remove(BencodeString.of(infoHash));
+    }
+
+    /**
+     * Records that the tracker reported the peer, returns true if it was not known yet.
+     */
+    public synchronized boolean add(long peer, String source) {
+        long now = System.currentTimeMillis();
+        boolean added = sighted(peer, source, now);
+        evict(now);
+        return added;
+    }
+
+    /**
+     * Records every peer of a tracker response, returns how many were not known yet.
+     */
+    public synchronized int addAll(PeerSet peers, String source) {
+        long now = System.currentTimeMillis();
+        int added = 0;
+        for (int c = peers.next(-1); c >= 0; c = peers.next(c)) {
+            if (sighted(peers.peerAt(c), source, now)) {
+                added++;
+            }
+        }
+        evict(now);
+        return added;
+    }
+
+    public synchronized void connectionFailed(long peer) {
+        Entry entry = entries.get(peer);
+        if (entry != null && ++entry.failures >= MAX_FAILURES) {
+            entries.remove(peer);
+        }
+    }
+
+    public synchronized void connectionSucceeded(long peer) {
+        Entry entry = entries.get(peer);
+        if (entry != null) {
+            entry.failures = 0;
+        }
+    }
+
+    /**
+     * Up to max peers to connect to, most recently seen and fewest failures first.
+     */
+    public synchronized List<Peer> candidates(int max) {
+        evict(System.currentTimeMillis());
+        List<Peer> candidates = new ArrayList<>(Math.min(max, entries.size()));
+        //fresh entries sit at the tail, walk the failure buckets from the tail backwards
+        List<Entry> ordered = new ArrayList<>(entries.values());
+        for (int failures = 0; failures < MAX_FAILURES && candidates.size() < max; failures++) {
+            for (int i = ordered.size() - 1; i >= 0 && candidates.size() < max; i--) {
+                if (ordered.get(i).failures == failures) {
+                    candidates.add(new Peer(ordered.get(i).peer));
+                }
+            }
+        }
+        return candidates;
+    }
+
+    public synchronized boolean contains(long peer) {
+        return entries.containsKey(peer);
+    }
+
+    public synchronized String source(long peer) {
+        Entry entry = entries.get(peer);
+        return entry == null ? null : entry.source;
+    }
+
+    public synchronized long firstSeen(long peer) {
+        Entry entry = entries.get(peer);
+        return entry == null ? -1 : entry.firstSeen;
+    }
+
+    public synchronized long lastSeen(long peer) {
+        Entry entry = entries.get(peer);
+        return entry == null ? -1 : entry.lastSeen;
+    }
+
+    public synchronized int failures(long peer) {
+        Entry entry = entries.get(peer);
+        return entry == null ? 0 : entry.failures;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private boolean sighted(long peer, String source, long now) {
+        //re-inserting moves the entry to the fresh end
+        Entry entry = entries.remove(peer);
+        boolean added = entry == null;
+        if (added) {
+            entry = new Entry(peer, source, now);
+        } else {
+            entry.lastSeen = now;
+            entry.source = source;
+        }
+        entries.put(peer, entry);
+        return added;
+    }
+
+    private void evict(long now) {
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (eldest.hasNext()) {
+            Entry entry = eldest.next();
+            if (entries.size() <= maxPeers && now - entry.lastSeen <= maxAgeMillis) {
+                break;
+            }
+            eldest.remove();
+        }
+    }
+}
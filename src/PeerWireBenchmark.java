@@ -0,0 +1,364 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Compares the {@link PeerIoMode}s at 1k, 10k and 50k peer connections over loopback. A seeder JVM
+ * (always the selector engine) answers every request with a 16 KiB block; each mode and
+ * connection count then runs in a fresh JVM that opens the connections, keeps a fixed number of
+ * requests in flight on each and reports connection setup time, throughput, request latency and
+ * the memory it holds with every connection open.
+ *
+ * Usage: PeerWireBenchmark [--connections 1000,10000,50000] [--modes selector,virtual] [--seconds 10] [--depth 4]
+ * Large counts need a matching open file limit (ulimit -n) for this process and the seeder.
+ */
+public class PeerWireBenchmark {
+    private static final int PIECE_COUNT = 1024;
+    private static final int PIECE_LENGTH = 1 << 18;
+    private static final int BLOCK_LENGTH = PeerConnection.MAX_BLOCK_LENGTH;
+    //spread connections over loopback addresses, one address runs out of ephemeral ports near 28k
+    private static final int LOOPBACK_ADDRESSES = 16;
+    //connects in progress at once, more than the accept backlog only causes SYN retries
+    private static final int MAX_PENDING_CONNECTS = 512;
+    private static final long SETUP_TIMEOUT_SECONDS = 300;
+
+    private record Result(String mode, int connections, int connected, long setupMillis, double mibPerSecond,
+                          double blocksPerSecond, long p50Micros, long p99Micros, double heapMib, double directMib,
+                          int threads) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--seeder")) {
+            seed();
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--run")) {
+            Result result = run(PeerIoMode.of(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+                    Integer.parseInt(args[4]), Integer.parseInt(args[5]));
+            System.out.println("RESULT " + format(result));
+            System.exit(0); //selector threads keep the JVM alive
+        }
+
+        String connections = "1000,10000,50000";
+        String modes = "selector,virtual";
+        int seconds = 10;
+        int depth = 4;
+        for (int i = 0; i < args.length - 1; i++) {
+            switch (args[i]) {
+                case "--connections" -> connections = args[++i];
+                case "--modes" -> modes = args[++i];
+                case "--seconds" -> seconds = Integer.parseInt(args[++i]);
+                case "--depth" -> depth = Integer.parseInt(args[++i]);
+                default -> {
+                }
+            }
+        }
+
+        Process seeder = java("--seeder").start();
+        BufferedReader seederOutput = new BufferedReader(new InputStreamReader(seeder.getInputStream(), StandardCharsets.UTF_8));
+        String portLine = seederOutput.readLine();
+        if (portLine == null || !portLine.startsWith("PORT ")) {
+            seeder.destroy();
+            throw new IOException("Seeder did not start: " + portLine);
+        }
+        int port = Integer.parseInt(portLine.substring(5));
+        try {
+            List<String> lines = new ArrayList<>();
+            for (String count : connections.split(",")) {
+                for (String mode : modes.split(",")) {
+                    String line = runChild(mode, count.trim(), port, seconds, depth);
+                    System.out.println(line);
+                    lines.add(line);
+                }
+            }
+            System.out.println();
+            lines.forEach(System.out::println);
+        } finally {
+            seeder.getOutputStream().close(); //the seeder exits when its stdin closes
+            seeder.waitFor(10, TimeUnit.SECONDS);
+            seeder.destroy();
+        }
+    }
+
+    private static String runChild(String mode, String connections, int port, int seconds, int depth) throws IOException, InterruptedException {
+        Process child = java("--run", mode, connections, Integer.toString(port), Integer.toString(seconds), Integer.toString(depth))
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        String result = "mode=" + mode + " connections=" + connections + " failed";
+        try (BufferedReader output = new BufferedReader(new InputStreamReader(child.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = output.readLine()) != null) {
+                if (line.startsWith("RESULT ")) {
+                    result = line.substring(7);
+                }
+            }
+        }
+        child.waitFor();
+        return result;
+    }
+
+    private static ProcessBuilder java(String... args) {
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(PeerWireBenchmark.class.getName());
+        command.addAll(List.of(args));
+        return new ProcessBuilder(command);
+    }
+
+    private static void seed() throws IOException {
+        ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_LENGTH);
+        new Random(1).ints(BLOCK_LENGTH).forEach(value -> block.put((byte) value));
+        ByteBuffer readOnly = block.flip().asReadOnlyBuffer();
+        PeerWireEngine engine = PeerWireEngine.create(PeerIoMode.SELECTOR, TrackerManager.generatePeerId("MT", "1.2.3"));
+        engine.register(metaData(), new PeerWireListener() {
+            @Override
+            public void connected(PeerConnection connection) {
+                connection.unchoke();
+            }
+
+            @Override
+            public void request(PeerConnection connection, int pieceIndex, int begin, int length) {
+                connection.piece(pieceIndex, begin, readOnly.slice(0, length));
+            }
+        });
+        engine.listen(0);
+        System.out.println("PORT " + engine.localPort());
+        System.out.flush();
+        while (System.in.read() >= 0) {
+            //serve until the parent closes our stdin
+        }
+        System.exit(0);
+    }
+
+    private static Result run(PeerIoMode mode, int connections, int port, int seconds, int depth) throws Exception {
+        long heapBefore = usedHeap();
+        long directBefore = directMemory();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        Semaphore pending = new Semaphore(MAX_PENDING_CONNECTS);
+        CountDownLatch settled = new CountDownLatch(connections);
+        Latency latency = new Latency();
+        AtomicLong blocks = new AtomicLong();
+        Map<PeerConnection, Session> sessions = new ConcurrentHashMap<>();
+        //each connection settles once, unchoked or disconnected
+        Set<PeerConnection> settledConnections = ConcurrentHashMap.newKeySet();
+        AtomicBoolean refill = new AtomicBoolean(true);
+
+        PeerWireEngine engine = PeerWireEngine.create(mode, TrackerManager.generatePeerId("MT", "1.2.3"));
+        engine.register(metaData(), new PeerWireListener() {
+            @Override
+            public void connected(PeerConnection connection) {
+                sessions.put(connection, new Session(connection, depth));
+                connection.interested();
+            }
+
+            @Override
+            public void unchoked(PeerConnection connection) {
+                settle(connection);
+            }
+
+            @Override
+            public void disconnected(PeerConnection connection, Exception cause) {
+                sessions.remove(connection);
+                settle(connection);
+            }
+
+            private void settle(PeerConnection connection) {
+                if (settledConnections.add(connection)) {
+                    pending.release();
+                    settled.countDown();
+                }
+            }
+
+            @Override
+            public void piece(PeerConnection connection, int pieceIndex, int begin, ByteBuffer block) {
+                Session session = sessions.get(connection);
+                if (session == null) {
+                    return;
+                }
+                latency.record(session.received());
+                blocks.incrementAndGet();
+                if (refill.get()) {
+                    session.request();
+                }
+            }
+        });
+
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            pending.acquire();
+            int address = 0x7F000001 + i % LOOPBACK_ADDRESSES;
+            try {
+                engine.connect(metaData().infoHash(), new Peer(PeerSet.pack(address, port)));
+            } catch (IOException e) {
+                pending.release();
+                settled.countDown();
+            }
+        }
+        settled.await(SETUP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        long setupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        int connected = sessions.size();
+
+        latency.reset();
+        blocks.set(0);
+        long measureStart = System.nanoTime();
+        for (Session session : sessions.values()) {
+            session.fill();
+        }
+        Thread.sleep(seconds * 1000L);
+        long measured = blocks.get();
+        double elapsedSeconds = (System.nanoTime() - measureStart) / 1e9;
+        long p50 = latency.percentile(0.50);
+        long p99 = latency.percentile(0.99);
+        refill.set(false); //let the pipelines drain
+        Thread.sleep(1000);
+
+        //memory held with every connection still open
+        double heapMib = (usedHeap() - heapBefore) / (1024.0 * 1024);
+        double directMib = (directMemory() - directBefore) / (1024.0 * 1024);
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+        for (PeerConnection connection : sessions.keySet()) {
+            connection.close();
+        }
+        return new Result(mode.getStringValue(), connections, connected, setupMillis,
+                measured * BLOCK_LENGTH / (1024.0 * 1024) / elapsedSeconds, measured / elapsedSeconds,
+                p50, p99, heapMib, directMib, threads);
+    }
+
+    private static String format(Result result) {
+        return String.format("mode=%-8s connections=%-6d connected=%-6d setup=%6dms throughput=%8.1fMiB/s %9.0f blocks/s"
+                        + " latency p50=%6dus p99=%7dus heap=%7.1fMiB direct=%7.1fMiB platformThreads=%d",
+                result.mode(), result.connections(), result.connected(), result.setupMillis(), result.mibPerSecond(),
+                result.blocksPerSecond(), result.p50Micros(), result.p99Micros(), result.heapMib(), result.directMib(),
+                result.threads());
+    }
+
+    private static TorrentMetaData metaData() {
+        try {
+            byte[] infoHash = MessageDigest.getInstance("SHA-1").digest("PeerWireBenchmark".getBytes(StandardCharsets.US_ASCII));
+            return new TorrentMetaData(null, null, null, null, null, null, infoHash, PIECE_LENGTH,
+                    PieceHashTable.wrap(ByteBuffer.allocate(PIECE_COUNT * PieceHashTable.HASH_LENGTH)), false,
+                    new TorrentMetaData.SingleModeInfo("benchmark", (long) PIECE_COUNT * PIECE_LENGTH), null);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        System.gc();
+        Thread.sleep(200);
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long directMemory() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Requests of one connection. The seeder answers in order, so send times form a FIFO.
+     */
+    private static final class Session {
+        private final PeerConnection connection;
+        private final long[] sentAt;
+        private int head;
+        private int tail;
+        private int nextBlock;
+
+        Session(PeerConnection connection, int depth) {
+            this.connection = connection;
+            this.sentAt = new long[depth];
+        }
+
+        synchronized void fill() {
+            while (tail - head < sentAt.length) {
+                request();
+            }
+        }
+
+        synchronized void request() {
+            int block = nextBlock++;
+            sentAt[tail++ % sentAt.length] = System.nanoTime();
+            int blocksPerPiece = PIECE_LENGTH / BLOCK_LENGTH;
+            connection.request(block / blocksPerPiece % PIECE_COUNT, block % blocksPerPiece * BLOCK_LENGTH, BLOCK_LENGTH);
+        }
+
+        //micros since the oldest outstanding request was sent
+        synchronized long received() {
+            if (head == tail) {
+                return 0;
+            }
+            return (System.nanoTime() - sentAt[head++ % sentAt.length]) / 1000;
+        }
+    }
+
+    /**
+     * Histogram with four buckets per power of two of microseconds, good to within 19%.
+     */
+    private static final class Latency {
+        private final AtomicLongArray buckets = new AtomicLongArray(64 * 4);
+
+        void record(long micros) {
+            buckets.incrementAndGet(bucket(Math.max(1, micros)));
+        }
+
+        void reset() {
+            for (int i = 0; i < buckets.length(); i++) {
+                buckets.set(i, 0);
+            }
+        }
+
+        long percentile(double fraction) {
+            long total = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                total += buckets.get(i);
+            }
+            long rank = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    return upperBound(i);
+                }
+            }
+            return 0;
+        }
+
+        private static int bucket(long micros) {
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int quarter = exponent >= 2 ? (int) (micros >>> (exponent - 2)) & 3 : (int) (micros << (2 - exponent)) & 3;
+            return exponent * 4 + quarter;
+        }
+
+        private static long upperBound(int bucket) {
+            int exponent = bucket / 4;
+            int quarter = bucket % 4;
+            return ((4L + quarter + 1) << exponent) / 4;
+        }
+    }
+}
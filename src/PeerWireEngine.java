@@ -0,0 +1,117 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BitTorrent peer-wire engine. Torrents are registered with the listener receiving their peers'
+ * messages; incoming connections are matched to a torrent by the info hash of their handshake.
+ * How connections do their I/O is up to the implementation, see {@link PeerIoMode}.
+ */
+public abstract class PeerWireEngine {
+    static final long CONNECT_TIMEOUT_MILLIS = 10_000;
+
+    private static PeerWireEngine instance;
+
+    private final byte[] peerId;
+    private final Map<BencodeString, Torrent> torrents = new ConcurrentHashMap<>();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+
+    record Torrent(TorrentMetaData metaData, PeerWireListener listener) {
+        int pieceCount() {
+            return metaData.pieces().pieceCount();
+        }
+    }
+
+    PeerWireEngine(byte[] peerId) {
+        if (peerId.length != 20) {
+            throw new IllegalArgumentException("Peer id must be 20 bytes");
+        }
+        this.peerId = peerId.clone();
+    }
+
+    /**
+     * The engine of the configured {@link PeerIoMode}.
+     */
+    public static synchronized PeerWireEngine getInstance() {
+        if (instance == null) {
+            instance = create(PeerIoMode.configured(), TrackerManager.generatePeerId("MT", "1.2.3"));
+        }
+        return instance;
+    }
+
+    public static PeerWireEngine create(PeerIoMode mode, byte[] peerId) {
+        return switch (mode) {
+            case SELECTOR -> new SelectorPeerWireEngine(peerId);
+            case VIRTUAL_THREADS -> new VirtualThreadPeerWireEngine(peerId);
+        };
+    }
+
+    public abstract PeerIoMode mode();
+
+    /**
+     * Opens a connection to the peer for a registered torrent. The handshake is sent once the
+     * socket connects; the torrent's listener hears about it through connected or disconnected.
+     */
+    public abstract PeerConnection connect(byte[] infoHash, Peer peer) throws IOException;
+
+    /**
+     * Accepts incoming peer connections on the port.
+     */
+    public abstract void listen(int port) throws IOException;
+
+    public abstract int localPort() throws IOException;
+
+    public byte[] peerId() {
+        return peerId.clone();
+    }
+
+    public void register(TorrentMetaData metaData, PeerWireListener listener) {
+        torrents.put(BencodeString.of(metaData.infoHash()), new Torrent(metaData, listener));
+    }
+
+    /**
+     * Stops accepting connections for the torrent, open connections are left to the caller.
+     */
+    public void unregister(byte[] infoHash) {
+        torrents.remove(BencodeString.of(infoHash));
+    }
+
+    public int connectionCount() {
+        return connectionCount.get();
+    }
+
+    Torrent registered(byte[] infoHash) {
+        Torrent torrent = torrent(infoHash);
+        if (torrent == null) {
+            throw new PeerWireException("Torrent not registered");
+        }
+        return torrent;
+    }
+
+    Torrent torrent(byte[] infoHash) {
+        return torrents.get(BencodeString.of(infoHash));
+    }
+
+    byte[] localPeerId() {
+        return peerId;
+    }
+
+    void opened() {
+        connectionCount.incrementAndGet();
+    }
+
+    void closed() {
+        connectionCount.decrementAndGet();
+    }
+
+    static InetSocketAddress address(Peer peer) throws UnknownHostException {
+        int ip = PeerSet.ip(peer.packed());
+        InetAddress address = InetAddress.getByAddress(new byte[]{
+                (byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip});
+        return new InetSocketAddress(address, peer.port());
+    }
+}
@@ -0,0 +1,8 @@
+public class PeerWireException extends RuntimeException {
+    PeerWireException(String message) {
+        super(message);
+    }
+    PeerWireException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
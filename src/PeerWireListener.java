@@ -0,0 +1,59 @@
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * Receives the messages of peer-wire connections. {@link #connected} and the message callbacks
+ * run on the thread reading the connection: its selector thread in {@link PeerIoMode#SELECTOR}
+ * mode, its reader virtual thread in {@link PeerIoMode#VIRTUAL_THREADS} mode. One connection's
+ * messages arrive in order, different connections call in concurrently.
+ *
+ * {@link #disconnected} runs on the thread that closed the connection: the reader, a selector
+ * thread timer, the virtual writer thread after a failed write, or any thread that sends on it or
+ * closes it. That includes threads already inside the listener, such as a {@link PieceVerifier}
+ * worker announcing a piece through {@link BlockRequestScheduler}, so a listener shared by several
+ * connections must guard its state with a reentrant lock. No connection lock is held during a
+ * callback, sending from one is fine. Callbacks must not block, in selector mode that stalls
+ * every connection of the thread; a callback that throws closes that connection only.
+ */
+public interface PeerWireListener {
+    //both handshakes done, messages may be sent from now on; a close on another thread can still
+    //deliver disconnected first, check isClosed() under the lock that disconnected takes
+    default void connected(PeerConnection connection) {
+    }
+
+    //also called when connecting or the handshake failed, cause is null after a local close
+    default void disconnected(PeerConnection connection, Exception cause) {
+    }
+
+    default void choked(PeerConnection connection) {
+    }
+
+    default void unchoked(PeerConnection connection) {
+    }
+
+    default void interested(PeerConnection connection) {
+    }
+
+    default void notInterested(PeerConnection connection) {
+    }
+
+    //only for pieces the peer did not have before
+    default void have(PeerConnection connection, int pieceIndex) {
+    }
+
+    //only sent as the first message, peerPieces() holds the same pieces and follows later HAVEs
+    default void bitfield(PeerConnection connection, BitSet pieces) {
+    }
+
+    default void request(PeerConnection connection, int pieceIndex, int begin, int length) {
+    }
+
+    /**
+     * The block is a view of the receive buffer, only valid until the callback returns.
+     */
+    default void piece(PeerConnection connection, int pieceIndex, int begin, ByteBuffer block) {
+    }
+
+    default void cancel(PeerConnection connection, int pieceIndex, int begin, int length) {
+    }
+}
@@ -0,0 +1,112 @@
+import java.nio.ByteBuffer;
+
+/**
+ * The SHA-1 piece table of a torrent: 20 bytes per piece, read in place from whatever buffer backs
+ * it. Built from the decoded pieces string it is a view of the memory-mapped .torrent file, so the
+ * hashes live off-heap and are never copied. Use {@link #toOffHeap()} for tables decoded from a heap buffer.
+ */
+public final class PieceHashTable {
+    public static final int HASH_LENGTH = 20;
+
+    private final ByteBuffer hashes;
+    private final int pieceCount;
+    private final int sourceOffset; //where the table starts in the .torrent file, -1 if unknown
+
+    private PieceHashTable(ByteBuffer hashes, int sourceOffset) {
+        if (hashes.remaining() % HASH_LENGTH != 0) {
+            throw new BencodeException("Pieces length is not a multiple of " + HASH_LENGTH);
+        }
+        this.hashes = hashes.slice().asReadOnlyBuffer();
+        this.pieceCount = hashes.remaining() / HASH_LENGTH;
+        this.sourceOffset = sourceOffset;
+    }
+
+    public static PieceHashTable of(BencodeString pieces) {
+        return new PieceHashTable(pieces.asByteBuffer(), pieces.offset());
+    }
+
+    //view of length bytes of the .torrent file buffer starting at offset
+    static PieceHashTable of(ByteBuffer source, int offset, int length) {
+        return new PieceHashTable(source.slice(offset, length), offset);
+    }
+
+    //wraps the remaining bytes of the buffer without copying
+    public static PieceHashTable wrap(ByteBuffer hashes) {
+        return new PieceHashTable(hashes, -1);
+    }
+
+    /**
+     * Copies a heap-backed table into a direct buffer once. Tables that are already direct
+     * (including memory-mapped ones) are returned as is.
+     */
+    public PieceHashTable toOffHeap() {
+        if (hashes.isDirect()) {
+            return this;
+        }
+        ByteBuffer direct = ByteBuffer.allocateDirect(hashes.capacity());
+        direct.put(hashes.duplicate());
+        direct.flip();
+        return new PieceHashTable(direct, -1);
+    }
+
+    public int pieceCount() {
+        return pieceCount;
+    }
+
+    int sourceOffset() {
+        return sourceOffset;
+    }
+
+    public boolean isDirect() {
+        return hashes.isDirect();
+    }
+
+    /**
+     * Read-only 20 byte view of the hash of the given piece.
+     */
+    public ByteBuffer hashOf(int pieceIndex) {
+        return hashes.slice(offsetOf(pieceIndex), HASH_LENGTH);
+    }
+
+    public void copyHashOf(int pieceIndex, byte[] destination, int offset) {
+        hashes.get(offsetOf(pieceIndex), destination, offset, HASH_LENGTH);
+    }
+
+    /**
+     * Compares the stored hash with a digest in constant time.
+     */
+    public boolean matches(int pieceIndex, byte[] digest) {
+        if (digest.length != HASH_LENGTH) {
+            return false;
+        }
+        int offset = offsetOf(pieceIndex);
+        int diff = 0;
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            diff |= hashes.get(offset + i) ^ digest[i];
+        }
+        return diff == 0;
+    }
+
+    /**
+     * Compares the stored hash with the remaining 20 bytes of a digest buffer in constant time.
+     */
+    public boolean matches(int pieceIndex, ByteBuffer digest) {
+        if (digest.remaining() != HASH_LENGTH) {
+            return false;
+        }
+        int offset = offsetOf(pieceIndex);
+        int start = digest.position();
+        int diff = 0;
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            diff |= hashes.get(offset + i) ^ digest.get(start + i);
+        }
+        return diff == 0;
+    }
+
+    private int offsetOf(int pieceIndex) {
+        if (pieceIndex < 0 || pieceIndex >= pieceCount) {
+            throw new IndexOutOfBoundsException("Piece index " + pieceIndex + " out of " + pieceCount);
+        }
+        return pieceIndex * HASH_LENGTH;
+    }
+}
@@ -0,0 +1,312 @@
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Chooses the next piece to download. Pieces not picked yet are kept in an availability histogram:
+ * for each priority, bucket n is an intrusive doubly linked list (int arrays indexed by piece) of
+ * the pieces n connected peers have. A HAVE moves one piece to the next bucket and a bitfield or
+ * disconnect does that per piece, each in O(1); the rarest piece is the head of the lowest non-empty
+ * bucket of the highest priority. A pick walks from there to the first piece the asking peer has.
+ *
+ * Sequential mode picks the lowest numbered piece instead, for streaming. Priorities are per piece
+ * or per file of a multi-file torrent, a piece taking the highest priority of the files it spans;
+ * priority 0 pieces are never picked. Not thread safe, the {@link BlockRequestScheduler} owning it
+ * calls it under its lock.
+ */
+public class PiecePicker {
+    public static final int PRIORITY_SKIP = 0;
+    public static final int PRIORITY_LOW = 1;
+    public static final int PRIORITY_NORMAL = 4;
+    public static final int PRIORITY_HIGH = 7;
+    private static final int PRIORITY_LEVELS = PRIORITY_HIGH + 1;
+    private static final int NONE = -1;
+
+    private final int pieceCount;
+    private final long pieceLength;
+    private final long totalLength;
+    private final FileIndex files; //null for a single-file torrent
+    private final int[] filePriorities;
+
+    private final int[] availability;
+    private final byte[] priorities;
+    private final int[] next;
+    private final int[] prev;
+    private final int[][] heads = new int[PRIORITY_LEVELS][];
+    private final int[] lowest = new int[PRIORITY_LEVELS]; //no non-empty bucket below this one
+    private final int[] linkedCounts = new int[PRIORITY_LEVELS];
+    private final BitSet pending = new BitSet(); //not picked yet
+    private int linkedCount;
+    private boolean sequential;
+    private int sequentialStart; //no pending piece below this one
+
+    public PiecePicker(TorrentMetaData metaData) {
+        this.pieceCount = metaData.pieces().pieceCount();
+        this.pieceLength = metaData.pieceLength();
+        this.totalLength = metaData.size();
+        this.files = metaData.multiModeInfo() == null ? null : metaData.multiModeInfo().files();
+        this.filePriorities = new int[files == null ? 1 : files.size()];
+        Arrays.fill(filePriorities, PRIORITY_NORMAL);
+        this.availability = new int[pieceCount];
+        this.priorities = new byte[pieceCount];
+        this.next = new int[pieceCount];
+        this.prev = new int[pieceCount];
+        for (int p = 0; p < PRIORITY_LEVELS; p++) {
+            heads[p] = new int[8];
+            Arrays.fill(heads[p], NONE);
+        }
+        Arrays.fill(priorities, (byte) PRIORITY_NORMAL);
+        pending.set(0, pieceCount);
+        //link in reverse so a fresh torrent starts at the lowest pieces
+        for (int piece = pieceCount - 1; piece >= 0; piece--) {
+            link(piece);
+        }
+    }
+
+    public int pieceCount() {
+        return pieceCount;
+    }
+
+    public int availability(int piece) {
+        return availability[piece];
+    }
+
+    public int priority(int piece) {
+        return priorities[piece];
+    }
+
+    public boolean isPending(int piece) {
+        return pending.get(piece);
+    }
+
+    /**
+     * True while a piece with a priority above 0 is waiting to be picked.
+     */
+    public boolean hasPickable() {
+        return linkedCount > 0;
+    }
+
+    public void setSequential(boolean sequential) {
+        this.sequential = sequential;
+    }
+
+    public boolean isSequential() {
+        return sequential;
+    }
+
+    public void peerHas(int piece) {
+        boolean linked = isLinked(piece);
+        if (linked) {
+            unlink(piece);
+        }
+        availability[piece]++;
+        if (linked) {
+            link(piece);
+        }
+    }
+
+    public void peerHas(BitSet pieces) {
+        for (int piece = pieces.nextSetBit(0); piece >= 0 && piece < pieceCount; piece = pieces.nextSetBit(piece + 1)) {
+            peerHas(piece);
+        }
+    }
+
+    /**
+     * A peer disconnected, its pieces are one copy rarer.
+     */
+    public void peerLost(BitSet pieces) {
+        for (int piece = pieces.nextSetBit(0); piece >= 0 && piece < pieceCount; piece = pieces.nextSetBit(piece + 1)) {
+            assert availability[piece] > 0 : "piece " + piece + " lost more often than reported";
+            boolean linked = isLinked(piece);
+            if (linked) {
+                unlink(piece);
+            }
+            availability[piece]--;
+            if (linked) {
+                link(piece);
+            }
+        }
+    }
+
+    /**
+     * Takes the next piece the peer has, by priority, then rarest first or lowest index in
+     * sequential mode. The piece stays out until {@link #restore}d. -1 if the peer has none.
+     */
+    public int pick(BitSet peerPieces) {
+        if (linkedCount == 0 || peerPieces == null) {
+            return NONE;
+        }
+        int piece = sequential ? pickSequential(peerPieces) : pickRarest(peerPieces);
+        if (piece != NONE) {
+            remove(piece);
+        }
+        return piece;
+    }
+
+    /**
+     * Takes the piece out for good, we have it.
+     */
+    public void remove(int piece) {
+        if (isLinked(piece)) {
+            unlink(piece);
+        }
+        pending.clear(piece);
+    }
+
+    /**
+     * Puts a picked piece back, it failed verification.
+     */
+    public void restore(int piece) {
+        if (pending.get(piece)) {
+            return;
+        }
+        pending.set(piece);
+        sequentialStart = Math.min(sequentialStart, piece);
+        link(piece);
+    }
+
+    public void setPiecePriority(int piece, int priority) {
+        checkPriority(priority);
+        if (priorities[piece] == priority) {
+            return;
+        }
+        boolean linked = isLinked(piece);
+        if (linked) {
+            unlink(piece);
+        }
+        priorities[piece] = (byte) priority;
+        if (pending.get(piece)) {
+            link(piece);
+        }
+    }
+
+    /**
+     * Sets the priority of one file; the pieces it spans are refreshed.
+     */
+    public void setFilePriority(int file, int priority) {
+        checkPriority(priority);
+        filePriorities[file] = priority;
+        long start = files == null ? 0 : files.offset(file);
+        long length = files == null ? totalLength : files.length(file);
+        if (length == 0) {
+            return;
+        }
+        int first = (int) (start / pieceLength);
+        int last = (int) ((start + length - 1) / pieceLength);
+        for (int piece = first; piece <= last; piece++) {
+            setPiecePriority(piece, piecePriorityFromFiles(piece));
+        }
+    }
+
+    public int filePriority(int file) {
+        return filePriorities[file];
+    }
+
+    //the highest priority of the files the piece overlaps
+    private int piecePriorityFromFiles(int piece) {
+        if (files == null) {
+            return filePriorities[0];
+        }
+        long start = piece * pieceLength;
+        long end = Math.min(totalLength, start + pieceLength);
+        int priority = PRIORITY_SKIP;
+        for (int file = files.fileAt(start); file < files.size() && files.offset(file) < end; file++) {
+            if (files.length(file) > 0) {
+                priority = Math.max(priority, filePriorities[file]);
+            }
+        }
+        return priority;
+    }
+
+    private int pickRarest(BitSet peerPieces) {
+        for (int p = PRIORITY_LEVELS - 1; p > PRIORITY_SKIP; p--) {
+            if (linkedCounts[p] == 0) {
+                continue;
+            }
+            int[] buckets = heads[p];
+            while (buckets[lowest[p]] == NONE) {
+                lowest[p]++;
+            }
+            //nobody has the pieces in bucket 0, the peer cannot have them either
+            for (int a = Math.max(1, lowest[p]); a < buckets.length; a++) {
+                for (int piece = buckets[a]; piece != NONE; piece = next[piece]) {
+                    if (peerPieces.get(piece)) {
+                        return piece;
+                    }
+                }
+            }
+        }
+        return NONE;
+    }
+
+    //lowest pending piece of the highest priority the peer has any of
+    private int pickSequential(BitSet peerPieces) {
+        sequentialStart = pending.nextSetBit(sequentialStart);
+        if (sequentialStart < 0) {
+            sequentialStart = pieceCount;
+            return NONE;
+        }
+        int top = PRIORITY_HIGH;
+        while (linkedCounts[top] == 0) {
+            top--;
+        }
+        int best = NONE;
+        for (int piece = peerPieces.nextSetBit(sequentialStart); piece >= 0 && piece < pieceCount; piece = peerPieces.nextSetBit(piece + 1)) {
+            if (isLinked(piece) && (best == NONE || priorities[piece] > priorities[best])) {
+                best = piece;
+                if (priorities[piece] == top) {
+                    break;
+                }
+            }
+        }
+        return best;
+    }
+
+    private boolean isLinked(int piece) {
+        return pending.get(piece) && priorities[piece] != PRIORITY_SKIP;
+    }
+
+    private void link(int piece) {
+        int p = priorities[piece];
+        if (p == PRIORITY_SKIP) {
+            return;
+        }
+        int a = availability[piece];
+        if (a >= heads[p].length) {
+            int oldLength = heads[p].length;
+            heads[p] = Arrays.copyOf(heads[p], Math.max(a + 1, oldLength * 2));
+            Arrays.fill(heads[p], oldLength, heads[p].length, NONE);
+        }
+        int head = heads[p][a];
+        next[piece] = head;
+        prev[piece] = NONE;
+        if (head != NONE) {
+            prev[head] = piece;
+        }
+        heads[p][a] = piece;
+        lowest[p] = Math.min(lowest[p], a);
+        linkedCounts[p]++;
+        linkedCount++;
+    }
+
+    private void unlink(int piece) {
+        int p = priorities[piece];
+        int a = availability[piece];
+        if (prev[piece] == NONE) {
+            heads[p][a] = next[piece];
+        } else {
+            next[prev[piece]] = next[piece];
+        }
+        if (next[piece] != NONE) {
+            prev[next[piece]] = prev[piece];
+        }
+        //an emptied lowest bucket is skipped by the next pick
+        linkedCounts[p]--;
+        linkedCount--;
+    }
+
+    private static void checkPriority(int priority) {
+        if (priority < PRIORITY_SKIP || priority > PRIORITY_HIGH) {
+            throw new IllegalArgumentException("Priority must be between " + PRIORITY_SKIP + " and " + PRIORITY_HIGH);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks pieces against the SHA-1 table of the torrent on a fixed pool of one worker per core.
+ * As the {@link BlockListener} of a {@link BlockRequestScheduler} it assembles each piece in a
+ * direct buffer, reused once hashed, and queues it when the last block arrives. The digest is fed
+ * the buffer itself and copies it through a small scratch array a chunk at a time, the piece is
+ * never copied onto the heap whole. Results go to the {@link VerificationListener}, then to the
+ * scheduler as a verified or rejected piece.
+ *
+ * When more pieces wait than twice the workers can hash at once, the scheduler is paused: blocks
+ * already requested still arrive but no new ones are asked for until half the backlog is hashed.
+ * {@link #verify} checks data from elsewhere, a mapped file region when rechecking, and blocks
+ * the caller instead.
+ */
+public class PieceVerifier implements BlockListener {
+    private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    });
+
+    private final PieceHashTable hashes;
+    private final long pieceLength;
+    private final long totalLength;
+    private final VerificationListener listener;
+    private final ExecutorService workers;
+    private final int threads;
+    private final int maxPending;
+    private volatile BlockRequestScheduler scheduler;
+
+    //guarded by the scheduler's lock, the only one calling the BlockListener methods
+    private final IntObjectMap<ByteBuffer> assembling = new IntObjectMap<>();
+    private boolean paused;
+
+    //guarded by 'this'
+    private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+    private int pending; //queued or being hashed
+    private boolean closed;
+
+    private final class Check implements Runnable {
+        final int pieceIndex;
+        final ByteBuffer data;
+        final boolean downloaded;
+
+        Check(int pieceIndex, ByteBuffer data, boolean downloaded) {
+            this.pieceIndex = pieceIndex;
+            this.data = data;
+            this.downloaded = downloaded;
+        }
+
+        @Override
+        public void run() {
+            check(this);
+        }
+    }
+
+    public PieceVerifier(TorrentMetaData metaData, VerificationListener listener) {
+        this(metaData, listener, Runtime.getRuntime().availableProcessors());
+    }
+
+    public PieceVerifier(TorrentMetaData metaData, VerificationListener listener, int threads) {
+        if (metaData.pieceLength() <= 0 || metaData.pieceLength() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Unsupported piece length " + metaData.pieceLength());
+        }
+        this.hashes = metaData.pieces();
+        this.pieceLength = metaData.pieceLength();
+        this.totalLength = metaData.size();
+        this.listener = listener;
+        this.threads = threads;
+        this.maxPending = 2 * threads;
+        AtomicInteger count = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "piece-verifier-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Downloaded pieces are reported to this scheduler, which is paused while hashing lags behind.
+     */
+    public void setScheduler(BlockRequestScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    public synchronized int pending() {
+        return pending;
+    }
+
+    @Override
+    public void blockReceived(int pieceIndex, int begin, ByteBuffer block) {
+        ByteBuffer data = assembling.get(pieceIndex);
+        if (data == null) {
+            data = takeBuffer();
+            assembling.put(pieceIndex, data);
+        }
+        data.put(begin, block, block.position(), block.remaining());
+    }
+
+    @Override
+    public void pieceCompleted(int pieceIndex) {
+        ByteBuffer data = assembling.remove(pieceIndex);
+        if (data == null) {
+            return;
+        }
+        data.clear().limit((int) pieceLength(pieceIndex));
+        boolean full;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            full = ++pending >= maxPending;
+        }
+        if (full && !paused && scheduler != null) {
+            paused = true;
+            scheduler.setPaused(true);
+        }
+        submit(new Check(pieceIndex, data, true));
+    }
+
+    /**
+     * Queues data that did not come through the scheduler, waiting while the workers are behind.
+     * The buffer must hold exactly the piece and stay untouched until the listener is called.
+     */
+    public void verify(int pieceIndex, ByteBuffer data) throws InterruptedException {
+        if (data.remaining() != pieceLength(pieceIndex)) {
+            throw new IllegalArgumentException("Piece " + pieceIndex + " is " + pieceLength(pieceIndex) + " bytes, got " + data.remaining());
+        }
+        synchronized (this) {
+            while (pending >= maxPending && !closed) {
+                wait();
+            }
+            if (closed) {
+                throw new IllegalStateException("Verifier closed");
+            }
+            pending++;
+        }
+        submit(new Check(pieceIndex, data.duplicate(), false));
+    }
+
+    /**
+     * Stops the workers. Checks still queued are dropped: downloaded pieces are rejected so the
+     * scheduler fetches them again, callers waiting in {@link #verify} get an IllegalStateException.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        for (Runnable dropped : workers.shutdownNow()) {
+            abandon((Check) dropped);
+        }
+        synchronized (this) {
+            freeBuffers.clear();
+        }
+    }
+
+    private void submit(Check check) {
+        try {
+            workers.execute(check);
+        } catch (RejectedExecutionException e) {
+            abandon(check); //closed meanwhile
+        }
+    }
+
+    private void abandon(Check check) {
+        try {
+            BlockRequestScheduler current = scheduler;
+            if (check.downloaded && current != null) {
+                current.pieceRejected(check.pieceIndex);
+            }
+        } finally {
+            finished(check.downloaded ? check.data : null);
+        }
+    }
+
+    private void check(Check check) {
+        int pieceIndex = check.pieceIndex;
+        ByteBuffer data = check.data;
+        boolean downloaded = check.downloaded;
+        BlockRequestScheduler current = scheduler;
+        try {
+            MessageDigest sha1 = SHA1.get();
+            sha1.update(data.duplicate());
+            boolean valid = hashes.matches(pieceIndex, sha1.digest());
+            if (valid) {
+                listener.pieceVerified(pieceIndex, data);
+            } else {
+                listener.pieceRejected(pieceIndex);
+            }
+            if (downloaded && current != null) {
+                if (valid) {
+                    current.pieceVerified(pieceIndex);
+                } else {
+                    current.pieceRejected(pieceIndex);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Verifying piece " + pieceIndex + " failed: " + e);
+            e.printStackTrace();
+            //the piece is neither had nor pending anywhere, download it again or it is never completed
+            if (downloaded && current != null) {
+                current.pieceRejected(pieceIndex);
+            }
+        } finally {
+            finished(downloaded ? data : null);
+        }
+    }
+
+    private void finished(ByteBuffer buffer) {
+        BlockRequestScheduler current = scheduler;
+        if (current == null) {
+            done(buffer);
+            return;
+        }
+        //same lock order as pieceCompleted: scheduler, then this
+        synchronized (current) {
+            int left = done(buffer);
+            if (paused && left <= threads) {
+                paused = false;
+                current.setPaused(false);
+            }
+        }
+    }
+
+    private synchronized int done(ByteBuffer buffer) {
+        if (buffer != null && freeBuffers.size() < maxPending) {
+            freeBuffers.push(buffer);
+        }
+        pending--;
+        notifyAll();
+        return pending;
+    }
+
+    private synchronized ByteBuffer takeBuffer() {
+        ByteBuffer buffer = freeBuffers.poll();
+        return buffer != null ? buffer.clear() : ByteBuffer.allocateDirect((int) pieceLength);
+    }
+
+    private long pieceLength(int piece) {
+        return piece == hashes.pieceCount() - 1 ? totalLength - piece * pieceLength : pieceLength;
+    }
+}
@@ -0,0 +1,9 @@
+/**
+ * Receives the result of a scrape queued on {@link ScrapeScheduler}.
+ */
+public interface ScrapeListener {
+    void scraped(byte[] infoHash, int seeders, int completed, int leechers);
+
+    default void scrapeFailed(byte[] infoHash, Status status) {
+    }
+}
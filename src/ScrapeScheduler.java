@@ -0,0 +1,195 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects scrape requests for torrents sharing a UDP tracker and sends them as full BEP 15 scrape
+ * packets (up to 74 infohashes each) instead of one packet per torrent. Requests arriving within
+ * {@link #COALESCE_DELAY_MILLIS} of each other go out together; all batches of a flush are sent
+ * back to back without waiting for earlier replies.
+ */
+public class ScrapeScheduler {
+    //BEP 15: about 74 infohashes fit in one scrape packet
+    static final int MAX_HASHES_PER_SCRAPE = 74;
+    private static final long COALESCE_DELAY_MILLIS = 100;
+    private static final int HEADER_SIZE = 16; //connection id + action + transaction id
+    private static final int RESULT_SIZE = 12; //seeders + completed + leechers
+    private static final int INFO_HASH_LENGTH = 20;
+
+    private final UdpTrackerEngine engine;
+    //requests waiting for the next flush of their tracker, guarded by 'this'
+    private final Map<UdpTracker, List<Request>> queued = new HashMap<>();
+
+    private record Request(byte[] infoHash, ScrapeListener listener) {
+    }
+
+    ScrapeScheduler(UdpTrackerEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Queues a scrape of the torrent; the listener is called once the tracker has answered.
+     */
+    public void scrape(UdpTracker tracker, byte[] infoHash, ScrapeListener listener) throws IOException {
+        if (infoHash.length != INFO_HASH_LENGTH) {
+            throw new IllegalArgumentException("Infohash must be 20 bytes");
+        }
+        boolean first;
+        synchronized (this) {
+            List<Request> requests = queued.computeIfAbsent(tracker, t -> new ArrayList<>());
+            first = requests.isEmpty();
+            requests.add(new Request(infoHash, listener));
+        }
+        if (first) {
+            engine.schedule(COALESCE_DELAY_MILLIS, () -> flush(tracker));
+        }
+    }
+
+    private void flush(UdpTracker tracker) {
+        List<Request> requests;
+        synchronized (this) {
+            requests = queued.remove(tracker);
+        }
+        if (requests == null) {
+            return;
+        }
+        List<ScrapeBatch> batches = new ArrayList<>();
+        for (int from = 0; from < requests.size(); from += MAX_HASHES_PER_SCRAPE) {
+            int to = Math.min(from + MAX_HASHES_PER_SCRAPE, requests.size());
+            batches.add(new ScrapeBatch(tracker, requests.subList(from, to)));
+        }
+        connectAndSend(tracker, batches);
+    }
+
+    private void connectAndSend(UdpTracker tracker, List<ScrapeBatch> batches) {
+        try {
+            engine.requestConnection(tracker, new UdpTrackerEngine.ConnectionCallback() {
+                @Override
+                public void connected(long connectionId) {
+                    for (ScrapeBatch batch : batches) {
+                        batch.send(connectionId);
+                    }
+                }
+
+                @Override
+                public void connectionFailed(Status status) {
+                    for (ScrapeBatch batch : batches) {
+                        batch.fail(status);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            for (ScrapeBatch batch : batches) {
+                batch.fail(Status.OFFLINE);
+            }
+        }
+    }
+
+    //one scrape packet, retransmitted on its own schedule until answered
+    private class ScrapeBatch implements UdpResponseHandler {
+        private final UdpTracker tracker;
+        private final List<Request> requests;
+        private final ByteBuffer packet;
+        private int transactionId;
+        private int attempt;
+        private TimerWheel.Timeout retransmission;
+        private boolean done;
+
+        ScrapeBatch(UdpTracker tracker, List<Request> requests) {
+            this.tracker = tracker;
+            this.requests = requests;
+            this.packet = engine.bufferPool().lease(HEADER_SIZE + requests.size() * INFO_HASH_LENGTH);
+            packet.position(HEADER_SIZE);
+            for (Request request : requests) {
+                packet.put(request.infoHash());
+            }
+        }
+
+        @Override
+        public UdpTracker tracker() {
+            return tracker;
+        }
+
+        synchronized void send(long connectionId) {
+            if (done) {
+                return;
+            }
+            transactionId = engine.newTransaction(this);
+            packet.putLong(0, connectionId);
+            packet.putInt(8, UdpTrackerEngine.ACTION_SCRAPE);
+            packet.putInt(12, transactionId);
+            transmit();
+        }
+
+        private void transmit() {
+            try {
+                engine.send(packet.rewind(), tracker);
+                retransmission = engine.schedule(UdpTrackerEngine.retransmitDelayMillis(attempt), this::timedOut);
+            } catch (IOException e) {
+                engine.cancelTransaction(transactionId);
+                fail(Status.OFFLINE);
+            }
+        }
+
+        private synchronized void timedOut() {
+            if (done) {
+                return;
+            }
+            if (++attempt > UdpTrackerEngine.MAX_RETRANSMISSIONS) {
+                engine.cancelTransaction(transactionId);
+                fail(Status.CONNECTION_TIME_OUT);
+            } else if (!tracker.hasConnectionId(System.currentTimeMillis())) {
+                //the connection id expired while waiting, resend under a fresh one
+                engine.cancelTransaction(transactionId);
+                connectAndSend(tracker, List.of(this));
+            } else {
+                transmit();
+            }
+        }
+
+        @Override
+        public synchronized void handleResponse(ByteBuffer response) {
+            if (done) {
+                return;
+            }
+            if (retransmission != null) {
+                retransmission.cancel();
+            }
+            int action = response.getInt();
+            response.getInt(); //transaction id, already matched by the engine
+            if (action != UdpTrackerEngine.ACTION_SCRAPE) {
+                fail(action == UdpTrackerEngine.ACTION_ERROR ? Status.REFUSED : Status.UNREGISTERED);
+                return;
+            }
+            finish();
+            //results come back in request order, a short reply leaves the rest unanswered
+            int answered = Math.min(requests.size(), response.remaining() / RESULT_SIZE);
+            for (int i = 0; i < answered; i++) {
+                Request request = requests.get(i);
+                request.listener().scraped(request.infoHash(), response.getInt(), response.getInt(), response.getInt());
+            }
+            for (int i = answered; i < requests.size(); i++) {
+                Request request = requests.get(i);
+                request.listener().scrapeFailed(request.infoHash(), Status.UNREGISTERED);
+            }
+        }
+
+        synchronized void fail(Status status) {
+            if (done) {
+                return;
+            }
+            finish();
+            for (Request request : requests) {
+                request.listener().scrapeFailed(request.infoHash(), status);
+            }
+        }
+
+        private void finish() {
+            done = true;
+            engine.bufferPool().release(packet);
+        }
+    }
+}
@@ -1,61 +1,135 @@
 import java.io.IOException;
 import java.nio.channels.*;
 import java.util.Iterator;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Pool of selector threads. Each channel is registered with one of them (round robin) and all of
+ * its events are handled on that thread. Registrations are queued and picked up by the owning
+ * thread between selects, so callers never block on a selector's key set. An exception thrown by
+ * a handler only affects that handler's channel.
+ */
 public class SelectorManager {
     private static SelectorManager instance;
-    private final Selector selector;
-    private final Map<SelectableChannel, UdpTrackerClient> connections;
+    private final SelectorLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    //loop owning the current thread, null on threads that are not selector threads
+    private static final ThreadLocal<SelectorLoop> CURRENT_LOOP = new ThreadLocal<>();
 
-    private SelectorManager() throws IOException {
-        selector = Selector.open();
-        connections = new ConcurrentHashMap<>();
-        startSelectorLoop();
+    private record Registration(SelectableChannel channel, int interestOps, ChannelHandler handler) {
+    }
+
+    private SelectorManager(int threadCount) throws IOException {
+        loops = new SelectorLoop[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            loops[i] = new SelectorLoop(i);
+        }
+        for (SelectorLoop loop : loops) {
+            loop.start();
+        }
     }
 
     public static synchronized SelectorManager getInstance() throws IOException {
         if (instance == null) {
-            instance = new SelectorManager();
+            instance = new SelectorManager(Runtime.getRuntime().availableProcessors());
         }
         return instance;
     }
 
-    public void registerConnection(DatagramChannel channel, UdpTrackerClient connection) throws ClosedChannelException {
-        channel.register(selector, SelectionKey.OP_READ);
-        connections.put(channel, connection);
-        selector.wakeup();
+    public int threadCount() {
+        return loops.length;
+    }
+
+    public void registerConnection(SelectableChannel channel, ChannelHandler connection) throws ClosedChannelException {
+        registerConnection(channel, SelectionKey.OP_READ, connection);
+    }
+
+    public void registerConnection(SelectableChannel channel, int interestOps, ChannelHandler connection) throws ClosedChannelException {
+        if (!channel.isOpen()) {
+            throw new ClosedChannelException();
+        }
+        loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)]
+                .register(new Registration(channel, interestOps, connection));
+    }
+
+    /**
+     * Runs the task on a selector thread after the delay. Called from a selector thread, the task
+     * runs on that same thread, so it never races with the channel handlers of that thread.
+     */
+    public TimerWheel.Timeout schedule(long delayMillis, Runnable task) {
+        SelectorLoop loop = CURRENT_LOOP.get();
+        if (loop == null) {
+            loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        }
+        return loop.timerWheel.schedule(delayMillis, task);
     }
 
-    private void startSelectorLoop() {
-        Thread selectorThread = new Thread(() -> {
+    private static final class SelectorLoop implements Runnable {
+        private final Selector selector;
+        private final TimerWheel timerWheel = new TimerWheel();
+        private final ConcurrentLinkedQueue<Registration> registrations = new ConcurrentLinkedQueue<>();
+        private final Thread thread;
+
+        SelectorLoop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "selector-" + index);
+            thread.setDaemon(false); //ensure this thread doesn't stop JVM to shut down
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        void register(Registration registration) {
+            registrations.add(registration);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            CURRENT_LOOP.set(this);
             try {
                 while (true) {
-                    int readyChannels = selector.select(1000);
+                    int readyChannels = selector.select(timerWheel.millisUntilNextTick(System.currentTimeMillis()));
+                    registerPending();
+                    timerWheel.advance(System.currentTimeMillis());
                     if (readyChannels == 0) continue;
                     Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
                     while (selectedKeys.hasNext()) {
                         SelectionKey key = selectedKeys.next();
-
-                        if (key.isReadable()) {
-                            DatagramChannel channel = (DatagramChannel) key.channel();
-                            UdpTrackerClient client = connections.get(channel);
-                            if (client != null) {
-                                client.handleResponse();
-                            }
-                        }
-
                         selectedKeys.remove();
+                        dispatch(key);
                     }
                 }
-            } catch (IOException e) {
+            } catch (IOException | ClosedSelectorException e) {
+                System.err.println("Selector loop " + thread.getName() + " stopped: " + e);
                 e.printStackTrace();
             }
-        });
-        selectorThread.setDaemon(false); //ensure this thread doesn't stop JVM to shut down
-        selectorThread.start();
-    }
+        }
 
+        private void registerPending() {
+            Registration registration;
+            while ((registration = registrations.poll()) != null) {
+                try {
+                    registration.channel().register(selector, registration.interestOps(), registration.handler());
+                } catch (ClosedChannelException e) {
+                    System.err.println("Channel closed before it was registered: " + registration.channel());
+                }
+            }
+        }
 
+        private static void dispatch(SelectionKey key) {
+            ChannelHandler handler = (ChannelHandler) key.attachment();
+            if (handler == null || !key.isValid()) {
+                return;
+            }
+            try {
+                handler.handleReady(key);
+            } catch (IOException | RuntimeException e) {
+                //a misbehaving channel must not stop the loop serving every other channel
+                handler.handleFailure(key, e);
+            }
+        }
+    }
 }
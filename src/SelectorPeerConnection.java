@@ -0,0 +1,200 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Peer connection driven by a selector thread. The read side runs on the owning selector thread
+ * only: bytes are read into that thread's receive buffer and every complete message is handled in
+ * place; only the tail of a message split across reads is kept, in a buffer leased for just that
+ * long. Messages are written straight away while the socket keeps up and queued, with OP_WRITE
+ * set, once it does not.
+ */
+public class SelectorPeerConnection extends PeerConnection implements ChannelHandler {
+    private final SocketChannel channel;
+    private volatile SelectionKey key;
+    private volatile Thread selectorThread;
+
+    //read side, selector thread only
+    private ByteBuffer pendingRead;
+
+    //guarded by itself
+    private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+
+    SelectorPeerConnection(PeerWireEngine engine, SocketChannel channel, Peer peer, PeerWireEngine.Torrent torrent) {
+        super(engine, peer, torrent);
+        this.channel = channel;
+    }
+
+    @Override
+    public int queuedMessages() {
+        synchronized (writeQueue) {
+            return writeQueue.size();
+        }
+    }
+
+    @Override
+    public void handleReady(SelectionKey key) throws IOException {
+        this.key = key;
+        selectorThread = Thread.currentThread();
+        if (state == State.CONNECTING && (key.isConnectable() || key.isWritable())) {
+            if (!channel.finishConnect()) {
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            connected();
+        }
+        if (key.isValid() && key.isReadable()) {
+            read();
+        }
+        if (key.isValid() && key.isWritable()) {
+            flush();
+        }
+    }
+
+    @Override
+    public void handleFailure(SelectionKey key, Exception e) {
+        close(e);
+    }
+
+    private void read() throws IOException {
+        ByteBuffer buffer = bufferPool.receiveBuffer();
+        if (pendingRead != null) {
+            buffer.put(pendingRead.flip());
+            bufferPool.release(pendingRead);
+            pendingRead = null;
+        }
+        int read = channel.read(buffer);
+        buffer.flip();
+        if (read > 0) {
+            lastReceived = System.currentTimeMillis();
+        }
+        process(buffer);
+        if (state == State.CLOSED) {
+            return;
+        }
+        if (buffer.hasRemaining()) {
+            //keep only the incomplete tail, the receive buffer belongs to every channel of this thread
+            pendingRead = bufferPool.lease(buffer.remaining());
+            pendingRead.put(buffer);
+        }
+        if (read < 0) {
+            close(new PeerWireException("Connection closed by peer"));
+        }
+    }
+
+    private void process(ByteBuffer buffer) {
+        while (state != State.CLOSED) {
+            if (state == State.HANDSHAKING) {
+                if (buffer.remaining() < HANDSHAKE_LENGTH) {
+                    return;
+                }
+                handleHandshake(buffer);
+                continue;
+            }
+            if (buffer.remaining() < 4) {
+                return;
+            }
+            int start = buffer.position();
+            int length = checkLength(buffer.getInt(start));
+            if (buffer.remaining() < 4 + length) {
+                return;
+            }
+            buffer.position(start + 4 + length);
+            if (length > 0) { //zero length is a keep-alive
+                handleMessage(buffer, start + 4, length);
+            }
+        }
+    }
+
+    /**
+     * Writes the message right away when nothing is queued ahead of it, the remainder waits for
+     * OP_WRITE.
+     */
+    @Override
+    void write(ByteBuffer message) {
+        IOException failure = null;
+        synchronized (writeQueue) {
+            if (state == State.CLOSED) {
+                bufferPool.release(message);
+                return;
+            }
+            boolean idle = writeQueue.isEmpty();
+            writeQueue.add(message);
+            if (idle && state != State.CONNECTING) {
+                try {
+                    if (!writeQueued()) {
+                        enableWrite();
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            close(failure);
+        }
+    }
+
+    private void flush() throws IOException {
+        synchronized (writeQueue) {
+            if (writeQueued()) {
+                SelectionKey current = key;
+                current.interestOps(current.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    //writes queued messages until the socket buffer fills, true once the queue is empty
+    private boolean writeQueued() throws IOException {
+        ByteBuffer message;
+        while ((message = writeQueue.peek()) != null) {
+            channel.write(message);
+            if (message.hasRemaining()) {
+                return false;
+            }
+            writeQueue.poll();
+            bufferPool.release(message);
+        }
+        lastSent = System.currentTimeMillis();
+        return true;
+    }
+
+    private void enableWrite() {
+        SelectionKey current = key;
+        if (current == null) {
+            return; //not registered yet, the first OP_READ or OP_CONNECT event flushes
+        }
+        if (current.isValid() && (current.interestOps() & SelectionKey.OP_WRITE) == 0) {
+            current.interestOps(current.interestOps() | SelectionKey.OP_WRITE);
+            current.selector().wakeup();
+        }
+    }
+
+    /**
+     * A partial message kept between reads is only returned to the pool when closed on the
+     * selector thread, otherwise it is left to the GC.
+     */
+    @Override
+    void closeChannel() {
+        synchronized (writeQueue) {
+            ByteBuffer message;
+            while ((message = writeQueue.poll()) != null) {
+                bufferPool.release(message);
+            }
+        }
+        SelectionKey currentKey = key;
+        if (currentKey != null) {
+            currentKey.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        if (pendingRead != null && Thread.currentThread() == selectorThread) {
+            bufferPool.release(pendingRead);
+            pendingRead = null;
+        }
+    }
+}
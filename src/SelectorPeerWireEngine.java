@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking peer-wire engine. Every connection is a {@link SelectorPeerConnection} handled by
+ * one of the {@link SelectorManager} threads, so thousands of peers share a handful of threads and
+ * one receive buffer per thread.
+ */
+public class SelectorPeerWireEngine extends PeerWireEngine implements ChannelHandler {
+    //the default of 50 drops SYNs when many peers connect at once
+    static final int ACCEPT_BACKLOG = 1024;
+
+    private ServerSocketChannel serverChannel;
+
+    public SelectorPeerWireEngine(byte[] peerId) {
+        super(peerId);
+    }
+
+    @Override
+    public PeerIoMode mode() {
+        return PeerIoMode.SELECTOR;
+    }
+
+    @Override
+    public PeerConnection connect(byte[] infoHash, Peer peer) throws IOException {
+        Torrent torrent = registered(infoHash);
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            boolean connected = channel.connect(address(peer));
+            SelectorPeerConnection connection = new SelectorPeerConnection(this, channel, peer, torrent);
+            //a loopback connect may finish at once and never report OP_CONNECT, wait for writable instead
+            SelectorManager.getInstance().registerConnection(channel,
+                    connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, connection);
+            opened();
+            connection.startTimer(CONNECT_TIMEOUT_MILLIS);
+            return connection;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Accepts incoming peer connections on the port.
+     */
+    @Override
+    public synchronized void listen(int port) throws IOException {
+        if (serverChannel != null) {
+            throw new PeerWireException("Already listening on " + serverChannel.getLocalAddress());
+        }
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.configureBlocking(false);
+        channel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        SelectorManager.getInstance().registerConnection(channel, SelectionKey.OP_ACCEPT, this);
+        serverChannel = channel;
+    }
+
+    @Override
+    public synchronized int localPort() throws IOException {
+        return serverChannel == null ? -1 : ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    }
+
+    @Override
+    public void handleReady(SelectionKey key) throws IOException {
+        if (!key.isAcceptable()) {
+            return;
+        }
+        SocketChannel channel;
+        while ((channel = ((ServerSocketChannel) key.channel()).accept()) != null) {
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+                SelectorPeerConnection connection = new SelectorPeerConnection(this, channel, new Peer(remote.getAddress().getHostAddress(), remote.getPort()), null);
+                SelectorManager.getInstance().registerConnection(channel, SelectionKey.OP_READ, connection);
+                opened();
+                connection.startTimer(PeerConnection.HANDSHAKE_TIMEOUT_MILLIS);
+            } catch (IOException | RuntimeException e) {
+                //IPv6 peers are not supported by Peer yet
+                System.err.println("Rejected incoming connection: " + e.getMessage());
+                channel.close();
+            }
+        }
+    }
+
+    //a failed accept must not close the listening socket
+    @Override
+    public void handleFailure(SelectionKey key, Exception e) {
+        System.err.println("Failed to accept peer connection: " + e);
+    }
+}
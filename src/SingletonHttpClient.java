@@ -1,14 +1,21 @@
 import java.net.http.HttpClient;
 import java.time.Duration;
+import java.util.concurrent.Executors;
 
 public class SingletonHttpClient {
     private static HttpClient client;
     public SingletonHttpClient() {
 
     }
-    public static HttpClient getClient() {
+    //one client for every tracker so HTTP/1.1 keep-alive connections are pooled and reused per host
+    public static synchronized HttpClient getClient() {
         if (client == null) {
-            client = HttpClient.newBuilder()
+            HttpClient.Builder builder = HttpClient.newBuilder();
+            if (PeerIoMode.configured() == PeerIoMode.VIRTUAL_THREADS) {
+                //responses are handled on virtual threads instead of the shared default pool
+                builder.executor(Executors.newVirtualThreadPerTaskExecutor());
+            }
+            client = builder
                     // Protocol version (HTTP 1.1 is more widely supported for trackers)
                     .version(HttpClient.Version.HTTP_1_1)
                     // Timeouts
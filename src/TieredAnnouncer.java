@@ -0,0 +1,255 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Announces one torrent following BEP 12 tiers. Each tier is shuffled once, then all its trackers
+ * are raced at the same time. The first to answer becomes the torrent's tracker and moves to the
+ * front of its tier; the others are dropped. The next tier is only tried once every tracker of the
+ * current one has failed, or none answered within {@link #TIER_TIMEOUT_MILLIS}. When the chosen
+ * tracker fails later the race starts over from the first tier.
+ */
+public class TieredAnnouncer implements AnnounceListener {
+    //the first BEP 15 retransmission, a live tracker has answered by then
+    private static final long TIER_TIMEOUT_MILLIS = 15_000;
+    //wait before racing all tiers again after every tracker failed
+    private static final long RETRY_MILLIS = 300_000;
+
+    private final List<List<String>> tiers;
+    private final byte[] peerId;
+    private final byte[] infoHash;
+    private final long size;
+    private volatile ScrapeListener scrapeListener;
+
+    //state guarded by 'this'
+    private final List<TrackerClient> racing = new ArrayList<>();
+    private TrackerClient active;
+    private int nextTier;
+    private TimerWheel.Timeout tierTimeout;
+    private boolean stopped;
+
+    public TieredAnnouncer(List<List<String>> tiers, byte[] peerId, byte[] infoHash, long size) {
+        this.tiers = new ArrayList<>(tiers.size());
+        for (List<String> tier : tiers) {
+            List<String> shuffled = new ArrayList<>(tier);
+            Collections.shuffle(shuffled);
+            this.tiers.add(shuffled);
+        }
+        this.peerId = peerId;
+        this.infoHash = infoHash;
+        this.size = size;
+    }
+
+    /**
+     * BEP 12: announce-list replaces announce when present. Empty for a trackerless torrent.
+     */
+    public static List<List<String>> tiersOf(TorrentMetaData metaData) {
+        if (metaData.announceList() != null && !metaData.announceList().isEmpty()) {
+            return metaData.announceList();
+        }
+        if (metaData.announce() == null) {
+            return List.of();
+        }
+        return List.of(List.of(metaData.announce()));
+    }
+
+    public void start() {
+        synchronized (this) {
+            stopped = false;
+            active = null;
+            nextTier = 0;
+        }
+        startNextTier();
+    }
+
+    public void stop() {
+        List<TrackerClient> dropped;
+        synchronized (this) {
+            stopped = true;
+            cancelTierTimeout();
+            dropped = new ArrayList<>(racing);
+            racing.clear();
+            active = null;
+        }
+        for (TrackerClient client : dropped) {
+            client.cancel();
+        }
+        AnnounceScheduler.getInstance().stopped(infoHash);
+    }
+
+    /**
+     * Scrape results of the UDP trackers raced from now on.
+     */
+    public void setScrapeListener(ScrapeListener scrapeListener) {
+        this.scrapeListener = scrapeListener;
+    }
+
+    public synchronized TrackerClient activeTracker() {
+        return active;
+    }
+
+    //clients call back holding their own lock, so the reaction runs later on a clean stack
+    @Override
+    public void announced(AnnounceScheduler.AnnounceTarget target) {
+        defer(() -> onAnnounced((TrackerClient) target));
+    }
+
+    @Override
+    public void announceFailed(AnnounceScheduler.AnnounceTarget target, Status status) {
+        defer(() -> onFailed((TrackerClient) target));
+    }
+
+    private void onAnnounced(TrackerClient winner) {
+        List<TrackerClient> losers;
+        synchronized (this) {
+            if (stopped || active != null || !racing.contains(winner)) {
+                return;
+            }
+            active = winner;
+            cancelTierTimeout();
+            promote(winner.announceUrl());
+            losers = new ArrayList<>(racing);
+            losers.remove(winner);
+            racing.clear();
+        }
+        System.out.println("Announcing to " + winner.announceUrl());
+        for (TrackerClient loser : losers) {
+            drop(loser);
+        }
+    }
+
+    private void onFailed(TrackerClient client) {
+        boolean restart = false;
+        boolean tierFailed = false;
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            if (client == active) {
+                active = null;
+                restart = true;
+            } else if (racing.remove(client)) {
+                tierFailed = racing.isEmpty() && active == null;
+            } else {
+                return;
+            }
+        }
+        drop(client);
+        if (restart) {
+            start();
+        } else if (tierFailed) {
+            startNextTier();
+        }
+    }
+
+    private void startNextTier() {
+        List<String> tier;
+        synchronized (this) {
+            if (stopped || active != null) {
+                return;
+            }
+            cancelTierTimeout();
+            if (nextTier >= tiers.size()) {
+                if (racing.isEmpty()) {
+                    System.out.println("No tracker answered, retrying in " + RETRY_MILLIS / 1000 + "s");
+                    tierTimeout = defer(RETRY_MILLIS, this::start);
+                }
+                return;
+            }
+            tier = new ArrayList<>(tiers.get(nextTier++));
+        }
+        List<TrackerClient> started = new ArrayList<>();
+        for (String url : tier) {
+            TrackerClient client = createClient(url);
+            if (client != null) {
+                client.setAnnounceListener(this);
+                started.add(client);
+            }
+        }
+        synchronized (this) {
+            racing.addAll(started);
+            if (!started.isEmpty()) {
+                tierTimeout = defer(TIER_TIMEOUT_MILLIS, this::tierTimedOut);
+            }
+        }
+        if (started.isEmpty()) {
+            startNextTier();
+            return;
+        }
+        for (TrackerClient client : started) {
+            try {
+                AnnounceScheduler.getInstance().start(client);
+            } catch (IOException e) {
+                System.out.println("Failed to announce: " + client.announceUrl() + ": " + e.getMessage());
+                onFailed(client);
+            }
+        }
+    }
+
+    //the trackers of the timed out tier keep racing alongside the next one
+    private void tierTimedOut() {
+        synchronized (this) {
+            tierTimeout = null;
+        }
+        startNextTier();
+    }
+
+    private void drop(TrackerClient client) {
+        AnnounceScheduler.getInstance().remove(client);
+        if (client.status() == Status.WORKING) {
+            //it saw our STARTED, let it forget us
+            try {
+                client.announce(TrackerEvent.STOPPED);
+            } catch (IOException e) {
+                client.cancel();
+            }
+        } else {
+            client.cancel();
+        }
+    }
+
+    private void promote(String url) {
+        for (List<String> tier : tiers) {
+            if (tier.remove(url)) {
+                tier.add(0, url);
+                return;
+            }
+        }
+    }
+
+    private TrackerClient createClient(String url) {
+        try {
+            if (url.startsWith("udp://")) {
+                UdpTrackerClient client = new UdpTrackerClient(url, peerId, infoHash, size);
+                client.setScrapeListener(scrapeListener);
+                return client;
+            } else if (url.startsWith("http://") || url.startsWith("https://")) {
+                return new HttpTrackerClient(url, peerId, infoHash, size);
+            }
+            return null; //no client for this protocol yet
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Failed to announce: " + url + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void cancelTierTimeout() {
+        if (tierTimeout != null) {
+            tierTimeout.cancel();
+            tierTimeout = null;
+        }
+    }
+
+    private static void defer(Runnable task) {
+        defer(0, task);
+    }
+
+    private static TimerWheel.Timeout defer(long delayMillis, Runnable task) {
+        try {
+            return SelectorManager.getInstance().schedule(delayMillis, task);
+        } catch (IOException e) {
+            throw new TrackerException("Selector unavailable: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,128 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hashed timer wheel driven by the thread that owns it (a selector loop calls {@link #advance(long)}).
+ * Scheduling and cancelling are O(1) and safe from any thread; tasks run on the owning thread.
+ * Delays longer than one rotation are handled by counting the remaining rounds per timeout.
+ */
+public class TimerWheel {
+    public static final long DEFAULT_TICK_MILLIS = 100;
+    private static final int DEFAULT_SLOT_COUNT = 512;
+
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long rounds;
+        private Timeout next;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public long deadline() {
+            return deadline;
+        }
+    }
+
+    private final long tickMillis;
+    private final Timeout[] slots;
+    private final int mask;
+    //timeouts scheduled from any thread, moved into the slots by the owning thread
+    private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private long processedTick; //last tick whose slot has been expired
+
+    public TimerWheel() {
+        this(DEFAULT_TICK_MILLIS, DEFAULT_SLOT_COUNT, System.currentTimeMillis());
+    }
+
+    public TimerWheel(long tickMillis, int slotCount, long nowMillis) {
+        if (Integer.bitCount(slotCount) != 1) {
+            throw new IllegalArgumentException("Slot count must be a power of two");
+        }
+        this.tickMillis = tickMillis;
+        this.slots = new Timeout[slotCount];
+        this.mask = slotCount - 1;
+        this.processedTick = nowMillis / tickMillis - 1;
+    }
+
+    public Timeout schedule(long delayMillis, Runnable task) {
+        Timeout timeout = new Timeout(task, System.currentTimeMillis() + Math.max(0, delayMillis));
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Runs every timeout due at nowMillis. Must only be called by the owning thread.
+     */
+    public void advance(long nowMillis) {
+        long targetTick = nowMillis / tickMillis;
+        transferPending();
+        while (processedTick < targetTick) {
+            processedTick++;
+            expire((int) (processedTick & mask));
+        }
+    }
+
+    public long millisUntilNextTick(long nowMillis) {
+        return Math.max(1, (processedTick + 1) * tickMillis - nowMillis);
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            //round up so a timeout never fires before its deadline
+            long tick = Math.max((timeout.deadline + tickMillis - 1) / tickMillis, processedTick + 1);
+            timeout.rounds = (tick - processedTick - 1) / slots.length;
+            int slot = (int) (tick & mask);
+            timeout.next = slots[slot];
+            slots[slot] = timeout;
+        }
+    }
+
+    private void expire(int slot) {
+        Timeout previous = null;
+        Timeout timeout = slots[slot];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.cancelled || timeout.rounds <= 0) {
+                //unlink first so the task can safely schedule new timeouts
+                if (previous == null) {
+                    slots[slot] = next;
+                } else {
+                    previous.next = next;
+                }
+                timeout.next = null;
+                if (!timeout.cancelled) {
+                    run(timeout);
+                }
+            } else {
+                timeout.rounds--;
+                previous = timeout;
+            }
+            timeout = next;
+        }
+    }
+
+    private static void run(Timeout timeout) {
+        try {
+            timeout.task.run();
+        } catch (RuntimeException e) {
+            //a failing task must not stop the loop driving the wheel
+            System.err.println("Timer task failed: " + e);
+            e.printStackTrace();
+        }
+    }
+}
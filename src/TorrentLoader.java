@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Loads many .torrent files at once, parsing and hashing them in parallel on a ForkJoinPool.
+ * A file that fails to parse is reported in {@link Result#failures()} and does not stop the batch.
+ */
+public class TorrentLoader {
+    //files per leaf task, parsing one file is small enough that a few per task amortise the forking
+    private static final int FILES_PER_TASK = 4;
+
+    private final ForkJoinPool pool;
+    private final MetaDataCache cache;
+
+    public TorrentLoader() {
+        this(ForkJoinPool.commonPool(), MetaDataCache.getInstance());
+    }
+
+    //cache may be null to always parse
+    public TorrentLoader(ForkJoinPool pool, MetaDataCache cache) {
+        this.pool = pool;
+        this.cache = cache;
+    }
+
+    public record Result(Map<Path, TorrentMetaData> loaded, Map<Path, Exception> failures, Stats stats) {
+    }
+
+    public record Stats(int files, int failed, long bytes, long elapsedNanos) {
+        public double filesPerSecond() {
+            return elapsedNanos == 0 ? 0 : files * 1e9 / elapsedNanos;
+        }
+
+        public double megabytesPerSecond() {
+            return elapsedNanos == 0 ? 0 : bytes * 1e9 / elapsedNanos / (1024 * 1024);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d files (%d failed), %.1f MiB in %.1f ms: %.0f files/s, %.1f MiB/s",
+                    files, failed, bytes / (1024.0 * 1024), elapsedNanos / 1e6, filesPerSecond(), megabytesPerSecond());
+        }
+    }
+
+    public Result loadDirectory(Path directory) throws IOException {
+        try (Stream<Path> entries = Files.list(directory)) {
+            return load(entries
+                    .filter(path -> path.getFileName().toString().endsWith(".torrent"))
+                    .filter(Files::isRegularFile)
+                    .collect(Collectors.toList()));
+        }
+    }
+
+    public Result load(List<Path> files) {
+        Map<Path, TorrentMetaData> loaded = new ConcurrentHashMap<>();
+        Map<Path, Exception> failures = new ConcurrentHashMap<>();
+        LongAdder bytes = new LongAdder();
+
+        long start = System.nanoTime();
+        pool.invoke(new LoadTask(files, 0, files.size(), loaded, failures, bytes));
+        long elapsed = System.nanoTime() - start;
+
+        return new Result(loaded, failures, new Stats(files.size(), failures.size(), bytes.sum(), elapsed));
+    }
+
+    private TorrentMetaData loadOne(Path path) throws IOException {
+        if (cache != null) {
+            return cache.get(path);
+        }
+        return Bencode.parse(path.toString());
+    }
+
+    private class LoadTask extends RecursiveAction {
+        private final List<Path> files;
+        private final int from;
+        private final int to;
+        private final Map<Path, TorrentMetaData> loaded;
+        private final Map<Path, Exception> failures;
+        private final LongAdder bytes;
+
+        LoadTask(List<Path> files, int from, int to, Map<Path, TorrentMetaData> loaded,
+                 Map<Path, Exception> failures, LongAdder bytes) {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+            this.loaded = loaded;
+            this.failures = failures;
+            this.bytes = bytes;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= FILES_PER_TASK) {
+                for (int i = from; i < to; i++) {
+                    Path path = files.get(i);
+                    try {
+                        bytes.add(Files.size(path));
+                        loaded.put(path, loadOne(path));
+                    } catch (IOException | RuntimeException e) {
+                        //BencodeException, ClassCastException or I/O errors only fail this file
+                        failures.put(path, e);
+                    }
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new LoadTask(files, from, middle, loaded, failures, bytes),
+                    new LoadTask(files, middle, to, loaded, failures, bytes));
+        }
+    }
+}
@@ -8,7 +8,7 @@ public record TorrentMetaData(String announce,
                               String encoding,
                               byte[] infoHash,
                               long pieceLength,
-                              byte[] pieces,
+                              PieceHashTable pieces,
                               boolean isPrivate,
                               SingleModeInfo singleModeInfo,
                               MultiModeInfo multiModeInfo,
@@ -24,7 +24,7 @@ public record TorrentMetaData(String announce,
                            String encoding,
                            byte[] infoHash,
                            long pieceLength,
-                           byte[] pieces,
+                           PieceHashTable pieces,
                            boolean isPrivate,
                            SingleModeInfo singleModeInfo,
                            MultiModeInfo multiModeInfo) {
@@ -47,9 +47,7 @@ public record TorrentMetaData(String announce,
         if (singleModeInfo != null) {
             return singleModeInfo.length();
         } else if (multiModeInfo != null) {
-            return multiModeInfo.files().stream()
-                    .mapToLong(TorrentMetaData.MultiModeInfo.File::length)
-                    .sum();
+            return multiModeInfo.files().totalLength();
         }
         return 0;
     }
@@ -57,7 +55,8 @@ public record TorrentMetaData(String announce,
     public record SingleModeInfo(String name, long length) {
     }
 
-    public record MultiModeInfo(String name, List<File> files) {
+    public record MultiModeInfo(String name, FileIndex files) {
+        //path is relative to the torrent's root directory, elements joined with '/'
         public record File(long length, String path) {
         }
     }
@@ -0,0 +1,15 @@
+/**
+ * A torrent's client for one tracker, as raced by {@link TieredAnnouncer}.
+ */
+public interface TrackerClient extends AnnounceScheduler.AnnounceTarget {
+    String announceUrl();
+
+    Status status();
+
+    void setAnnounceListener(AnnounceListener listener);
+
+    /**
+     * Drops the outstanding announce without telling the tracker; no retries follow.
+     */
+    void cancel();
+}
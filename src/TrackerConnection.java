@@ -1,27 +1,15 @@
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.DatagramChannel;
 import java.util.*;
-import java.util.concurrent.CompletionException;
 
 public class TrackerConnection {
-    private int minInterval;
-    private int interval;
     private long uploaded = 0;
     private long downloaded = 0;
     private long left;
-    private String trackerId;
     private int numWant;
-    private int numSeeders;
-    private int numLeechers;
-    private List<Peer> peers = new ArrayList<Peer>();
-    private HttpClient httpClient;
     private final int port = 6881;
 
     private final byte[] peerId;
@@ -32,6 +20,8 @@ public class TrackerConnection {
     //for udp request only
     private static final Random RANDOM = new Random();
     private static final int key = RANDOM.nextInt();
+    private static final int UDP_REQUEST_BUFFER_SIZE = 98;
+    private static final int UDP_RESPONSE_BUFFER_SIZE = 1024;
     public TrackerConnection(String announceUrl, byte[] peerId, byte[] infoHash) {
         this.annouceUrl = announceUrl;
         this.peerId = peerId;
@@ -42,7 +32,7 @@ public class TrackerConnection {
         if (annouceUrl.startsWith("udp://")) {
             sendUdpRequest(TrackerEvent.STARTED);
         } else if (annouceUrl.startsWith("http://") | annouceUrl.startsWith("https://")) {
-//            sendHttpRequest(TrackerEvent.STARTED); //TODO try to handle error: port fails, timeout, ...
+            new HttpTrackerClient(annouceUrl, peerId, infoHash, left).announce(TrackerEvent.STARTED);
         } else if (annouceUrl.startsWith("wss://") | annouceUrl.startsWith("ws://")) {
             sendWsRequest();
         }
@@ -53,108 +43,24 @@ public class TrackerConnection {
 
     }
 
-    // send request -> (if error, handle it) -> receive response -> parse response & get all information -> store in a class TrackerResponseState ->
-    // -> schedule to send announce at every x seconds -> receive response and parse it -> update TrackerResponseState
-    // update all the states before sending request: uploaded, downloaded, left, event
-    //
-    //
-    private void sendHttpRequest(TrackerEvent event) {
-//        var httpClient = SingletonHttpClient.getClient();
-        String fullUrl = buildFullUrl(event);
-
-        var request = HttpRequest.newBuilder()
-                .GET()
-                .header("User-Agent", "BitTorrent/1.0")
-                .uri(URI.create(fullUrl))
-                .build();
-
-        httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
-                .thenAccept(this::handleResponse)
-                .exceptionally(throwable -> {
-                    // Unwrap CompletionException
-                    Throwable cause = throwable instanceof CompletionException ?
-                            throwable.getCause() : throwable;
-                    System.err.println("Error type: " + cause.getClass().getSimpleName());
-                    System.err.println("Error message: " + cause.getMessage());
-                    cause.printStackTrace();  // Print full stack trace
-                    return null;
-                });
-
-        // Add delay to keep program running
-        try {
-            Thread.sleep(5000);  // Wait 5 seconds for response
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-        }
-    }
-
-    private void handleResponse(HttpResponse<byte[]> response) {
-        if (response.statusCode() != 200) {
-            throw new TrackerException("HTTP error: " + response.statusCode());
-        }
+    private void sendUdpRequest(TrackerEvent event) {
+        //one request and one response buffer from the pool serve both the connect and the announce exchange
+        BufferPool bufferPool = BufferPool.getInstance();
+        ByteBuffer request = bufferPool.lease(UDP_REQUEST_BUFFER_SIZE);
+        ByteBuffer response = bufferPool.lease(UDP_RESPONSE_BUFFER_SIZE);
         try {
-            var decoded = (Map<String, Object>) Bencode.decode(response.body());
-            if (decoded.containsKey("failure reason")) {
-                throw new TrackerException("Failure reason: " + decoded.get("failure reason"));
-            }
-            System.out.println(decoded);
-            interval = (int) decoded.get("interval");
-            minInterval = (int) decoded.get("min interval"); //WARN can be null
-            trackerId = (String) decoded.get("tracker id"); //WARN can be null
-            numSeeders = (int) decoded.get("complete");
-            numLeechers = (int) decoded.get("incomplete");
-
-            byte[] compactPeers = ((String) decoded.get("peers")).getBytes(); //TODO assume using binary model, need to handle dictionary model
-            if (compactPeers.length % 6 != 0) {
-                throw new TrackerException("Peers length is not a multiple of 6");
-            }
-            for (int i = 0; i < compactPeers.length; i += 6) {
-                // Convert 4 bytes to IP address
-                String ip = String.format("%d.%d.%d.%d",
-                        compactPeers[i] & 0xFF,
-                        compactPeers[i + 1] & 0xFF,
-                        compactPeers[i + 2] & 0xFF,
-                        compactPeers[i + 3] & 0xFF);
-
-                // Convert 2 bytes to port number
-                int port = ((compactPeers[i + 4] & 0xFF) << 8) |
-                        (compactPeers[i + 5] & 0xFF);
-
-                peers.add(new Peer(ip, port));
-            }
-
-        } catch (ClassCastException e) {
-            throw new BencodeException(e.getMessage(), e);
-        }
-    }
-
-    private String buildFullUrl(TrackerEvent event) {
-        //TODO add more checks: check if the url already had '?' or not
-        //TODO the bittorrent specification leaves out compact, no peer id, numwant, key, trackerID and ip. Decide what to do with it
-        StringBuilder bd = new StringBuilder(annouceUrl);
-        bd.append("?info_hash=").append(urlEncodeBytes(infoHash))
-                .append("&peer_id=").append(urlEncodeBytes(peerId))
-                .append("&port=").append(port)
-                .append("&uploaded=").append(uploaded)
-                .append("&downloaded=").append(downloaded)
-                .append("&left=").append(left)
-                .append("&event=").append(event.getStringValue());
-        return bd.toString();
-    }
-
-    private String urlEncodeBytes(byte[] bytes) {
-        StringBuilder encoded = new StringBuilder();
-        for (byte b : bytes) {
-            encoded.append('%').append(String.format("%02x", b & 0xff));
+            sendUdpRequest(event, request, response);
+        } finally {
+            bufferPool.release(request);
+            bufferPool.release(response);
         }
-        return encoded.toString();
     }
 
-    private void sendUdpRequest(TrackerEvent event) {
+    private void sendUdpRequest(TrackerEvent event, ByteBuffer request, ByteBuffer response) {
         System.out.println(annouceUrl);
         InetSocketAddress address = parseUdpAnnounceUrl(annouceUrl);
         //prepare packet for connection request
-        ByteBuffer connectRequestBuffer = ByteBuffer.allocate(16);
+        ByteBuffer connectRequestBuffer = request.clear().limit(16);
         connectRequestBuffer.order(ByteOrder.BIG_ENDIAN);
         connectRequestBuffer.putLong(0x41727101980L); //magic constant
         connectRequestBuffer.putInt(0); // action = connect = 0
@@ -171,9 +77,7 @@ public class TrackerConnection {
         }
 
         //receive response
-        ByteBuffer responseConnectBuffer = ByteBuffer.allocate(16);
-        responseConnectBuffer.clear();
-        System.out.println(Arrays.toString(responseConnectBuffer.array()));
+        ByteBuffer responseConnectBuffer = response.clear().limit(16);
         try {
             channel.receive(responseConnectBuffer);
         } catch (IOException e) {
@@ -198,7 +102,7 @@ public class TrackerConnection {
         long connectionId = responseConnectBuffer.getLong();
 
         //prepare packet for announce request
-        ByteBuffer announceBuffer = ByteBuffer.allocate(98);
+        ByteBuffer announceBuffer = request.clear().limit(98);
         announceBuffer.order(ByteOrder.BIG_ENDIAN);
 
         announceBuffer.putLong(connectionId);
@@ -224,13 +128,13 @@ public class TrackerConnection {
             throw new RuntimeException(e);
         }
         //receive response
-        ByteBuffer responseAnnounceBuffer = ByteBuffer.allocate(1024);
-        responseAnnounceBuffer.clear();
+        ByteBuffer responseAnnounceBuffer = response.clear();
         try {
             channel.receive(responseAnnounceBuffer);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        responseAnnounceBuffer.flip();
 
         //parse response
         if (responseAnnounceBuffer.remaining() < 20) {
@@ -247,28 +151,9 @@ public class TrackerConnection {
         int interval = responseAnnounceBuffer.getInt(); //TODO assign to instance variable instead - PEER_SIZE = 6
         int leechers = responseAnnounceBuffer.getInt();
         int seeders = responseAnnounceBuffer.getInt();
-        int remainingBytes = responseAnnounceBuffer.remaining();
-        if (remainingBytes % 6 != 0) { //TODO move '6' to static instance variable
-            throw new TrackerException("Announce Request: Peer data length is not multiple of 6 bytes");
-        }
-        int numPeers = remainingBytes / 6;
-
-        // Parse peers
-        List<Peer> peers = new ArrayList<>();
-        for (int i = 0; i < numPeers; i++) {
-            // Read IP (4 bytes)
-            String ip = String.format("%d.%d.%d.%d",
-                    responseAnnounceBuffer.get() & 0xFF,
-                    responseAnnounceBuffer.get() & 0xFF,
-                    responseAnnounceBuffer.get() & 0xFF,
-                    responseAnnounceBuffer.get() & 0xFF);
-
-            // Read port (2 bytes)
-            int port = ((responseAnnounceBuffer.get() & 0xFF) << 8) |
-                    (responseAnnounceBuffer.get() & 0xFF);
-
-            peers.add(new Peer(ip, port));
-        }
+        PeerSet peers = new PeerSet();
+        peers.addCompact(responseAnnounceBuffer, responseAnnounceBuffer.position(), responseAnnounceBuffer.remaining());
+        PeerStore.forTorrent(infoHash).addAll(peers, annouceUrl);
         System.out.println("Interval: " + interval);
         System.out.println("Leechers: " + leechers);
         System.out.println("Seeders: " + seeders);
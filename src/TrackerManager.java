@@ -1,16 +1,17 @@
 import java.io.IOException;
-import java.nio.channels.Selector;
-import java.nio.channels.UnresolvedAddressException;
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
-import java.util.ArrayList;
 import java.util.List;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.Random;
 
 public class TrackerManager {
     private static final String CLIENT_ID = "JB";
     private static final String VERSION = "0001";
     private static final SecureRandom RANDOM = new SecureRandom();
+    //the port the tracker clients announce
+    private static final int PEER_PORT = 6881;
     private final String pathToTorrent;
 
     public TrackerManager(String pathToTorrent) throws IOException {
@@ -50,38 +51,48 @@ public class TrackerManager {
         return peerId.toString().getBytes();
     }
 
-    public void getPeer() {
-        // Parse torrent file
-        TorrentMetaData torrentData = Bencode.parse(pathToTorrent);
+    public void getPeer() throws IOException {
+        // Parse torrent file, re-announces reuse the cached metadata
+        TorrentMetaData torrentData = MetaDataCache.getInstance().get(Path.of(pathToTorrent));
 
-        // Generate peer ID
-        byte[] peerId = generatePeerId("MT", "1.2.3");
+        // Trackers hand out the peer id the peer-wire engine handshakes with
+        PeerWireEngine engine = PeerWireEngine.getInstance();
+        byte[] peerId = engine.peerId();
 
-        // Collect announce URLs
-        List<String> announceUrls = new ArrayList<>();
-        announceUrls.add(torrentData.announce());
-
-        // Handle announce-list (list of lists)
-        if (torrentData.announceList() != null) {
-            torrentData.announceList().stream()
-                    .flatMap(List::stream)  // Flatten list of lists
-                    .filter(url -> url.startsWith("udp://"))
-                    .forEach(announceUrls::add);
+        // BEP 12 tiers: race the trackers of a tier, fall back to the next tier only if they all fail
+        List<List<String>> tiers = TieredAnnouncer.tiersOf(torrentData);
+        if (tiers.isEmpty()) {
+            System.out.println("Torrent has no trackers, nothing to announce");
+            return;
         }
-        announceUrls.forEach(System.out::println);
-
-        for (String announceUrl : announceUrls) {
-            try {
-                UdpTrackerClient client = new UdpTrackerClient(announceUrl,
-                        peerId,
-                        torrentData.infoHash(),
-                        torrentData.size());
-                client.startAnnouncing();
-            } catch (IOException | UnresolvedAddressException e) {
-                System.out.println("Failed to announce: " + announceUrl + ": " + e.getMessage());
+        tiers.forEach(System.out::println);
+
+        TieredAnnouncer announcer = new TieredAnnouncer(tiers, peerId, torrentData.infoHash(), torrentData.size());
+        announcer.setScrapeListener((infoHash, seeders, completed, leechers) ->
+                System.out.println("Seeders: " + seeders + " | Completed: " + completed + " | leechers: " + leechers));
+        announcer.start();
+
+        // Download from the peers the trackers report; pieces are verified, there is no storage yet
+        PieceVerifier verifier = new PieceVerifier(torrentData, new VerificationListener() {
+            @Override
+            public void pieceVerified(int pieceIndex, ByteBuffer data) {
+                System.out.println("Piece " + pieceIndex + " verified");
             }
 
+            @Override
+            public void pieceRejected(int pieceIndex) {
+                System.out.println("Piece " + pieceIndex + " failed its hash check");
+            }
+        });
+        BlockRequestScheduler scheduler = new BlockRequestScheduler(torrentData, verifier);
+        verifier.setScheduler(scheduler);
+        engine.register(torrentData, scheduler);
+        try {
+            engine.listen(PEER_PORT);
+        } catch (IOException e) {
+            System.out.println("Not accepting peers on port " + PEER_PORT + ": " + e.getMessage());
         }
+        new PeerConnector(engine, torrentData.infoHash()).start();
     }
 
     public static void main(String[] args) throws IOException {
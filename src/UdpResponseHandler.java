@@ -0,0 +1,12 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Owner of an outstanding UDP tracker transaction; {@link UdpTrackerEngine} hands it the reply.
+ */
+public interface UdpResponseHandler {
+    UdpTracker tracker();
+
+    //response is positioned at the action field
+    void handleResponse(ByteBuffer response) throws IOException;
+}
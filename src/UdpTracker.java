@@ -0,0 +1,73 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Per-tracker state shared by every torrent announcing to the same UDP tracker.
+ */
+public final class UdpTracker {
+    //BEP 15: a connection id may be used for one minute after it was received
+    static final long CONNECTION_ID_LIFETIME_MILLIS = 60_000;
+
+    final InetSocketAddress address;
+    final int channelIndex; //which of the engine's channels talks to this tracker
+    private long connectionId;
+    private long connectionIdExpiresAt;
+    //callbacks waiting for the handshake in flight, null when no handshake is running
+    private List<UdpTrackerEngine.ConnectionCallback> connectionWaiters;
+
+    UdpTracker(InetSocketAddress address, int channelIndex) {
+        this.address = address;
+        this.channelIndex = channelIndex;
+    }
+
+    public InetSocketAddress address() {
+        return address;
+    }
+
+    public synchronized boolean hasConnectionId(long nowMillis) {
+        return nowMillis < connectionIdExpiresAt;
+    }
+
+    public synchronized long connectionId() {
+        return connectionId;
+    }
+
+    public synchronized void connected(long connectionId, long nowMillis) {
+        this.connectionId = connectionId;
+        this.connectionIdExpiresAt = nowMillis + CONNECTION_ID_LIFETIME_MILLIS;
+    }
+
+    //returns true if the caller has to start the handshake
+    synchronized boolean addConnectionWaiter(UdpTrackerEngine.ConnectionCallback callback) {
+        boolean first = connectionWaiters == null;
+        if (first) {
+            connectionWaiters = new ArrayList<>();
+        }
+        connectionWaiters.add(callback);
+        return first;
+    }
+
+    synchronized List<UdpTrackerEngine.ConnectionCallback> takeConnectionWaiters() {
+        List<UdpTrackerEngine.ConnectionCallback> waiters = connectionWaiters == null ? List.of() : connectionWaiters;
+        connectionWaiters = null;
+        return waiters;
+    }
+
+    static InetSocketAddress parseAnnounceUrl(String announceUrl) {
+        //remove udp:// and /announce part
+        String cleanedUrl = announceUrl
+                .replace("udp://", "")
+                .replace("/announce", "");
+
+        String[] parts = cleanedUrl.split(":");
+        String host = parts[0];
+        int port = Integer.parseInt(parts[1]);
+        return new InetSocketAddress(host, port);
+    }
+
+    @Override
+    public String toString() {
+        return "UdpTracker [" + address + "]";
+    }
+}
@@ -1,19 +1,15 @@
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.channels.DatagramChannel;
 import java.nio.channels.UnresolvedAddressException;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Random;
 
-public class UdpTrackerClient {
+public class UdpTrackerClient implements TrackerClient, UdpResponseHandler, ScrapeListener, UdpTrackerEngine.ConnectionCallback {
     private final byte[] peerId;
     private final String announceUrl;
     private final byte[] infoHash;
-    private List<Peer> peers = new ArrayList<>();
+    //peers of the latest announce reply, they are kept in the torrent's PeerStore
+    private final PeerSet peers = new PeerSet();
     private long uploaded = 0;
     private long downloaded = 0;
     private long left;
@@ -27,40 +23,39 @@ public class UdpTrackerClient {
     private int transactionId;
 
     //constant
-    //connect request
-    private static final int CONNECT_REQUEST_BUFFER_SIZE = 16;
-    private final ByteBuffer connectRequestBuffer = ByteBuffer.allocate(CONNECT_REQUEST_BUFFER_SIZE);
-    private static final int CONNECT_RESPONSE_BUFFER_SIZE = 16;
-
     //announce request
     private static final int ANNOUNCE_REQUEST_BUFFER_SIZE = 98;
-    private final ByteBuffer announceRequestBuffer = ByteBuffer.allocate(ANNOUNCE_REQUEST_BUFFER_SIZE);
-    private static final int INITIAL_ANNOUNCE_RESPONSE_BUFFER_SIZE = 1024;
+    //leased from the engine's pool while an announce is outstanding, null otherwise
+    private ByteBuffer announceRequestBuffer;
 
-    //scrape request
     private static final int MINIMUM_ANNOUNCE_RESPONSE_BUFFER_SIZE = 20;
-    private static final int SCAPRE_REQUEST_BUFFER_SIZE = 36;
-    private final ByteBuffer scrapeRequestBuffer= ByteBuffer.allocate(SCAPRE_REQUEST_BUFFER_SIZE);
-    private static final int MINIMUM_SCAPRE_RESPONSE_BUFFER_SIZE = 8;
+    //scrapes are batched with other torrents on the same tracker by the engine's ScrapeScheduler
     private boolean isScraped = false;
 
-    //receive buffer
-    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(INITIAL_ANNOUNCE_RESPONSE_BUFFER_SIZE);
-    private static final int ACTION_CONNECT = 0;
-    private static final int ACTION_ANNOUNCE = 1;
-    private static final int ACTION_SCRAPE = 2;
-    private static final int ACTION_ERROR = 3;
+    private static final int ACTION_ANNOUNCE = UdpTrackerEngine.ACTION_ANNOUNCE;
+    private static final int ACTION_ERROR = UdpTrackerEngine.ACTION_ERROR;
 
     //error response
     private static final int MINIMUM_ERROR_MESSAGE = 8;
 
     private long connectionId;
 
-    private static final long MAGIC_CONSTANT = 0x41727101980L;
+    private int attempt;
+    private TimerWheel.Timeout retransmission;
+    private int retransmissionGeneration; //a timer already firing when cancelled sees a newer one
+    private TrackerEvent event = TrackerEvent.STARTED;
+    private Status status = Status.INITIALIZING;
+    private boolean cancelled;
+    //registered with the engine for a connection id, connected or connectionFailed is still to come
+    private boolean connecting;
+    private AnnounceListener listener;
+    private ScrapeListener scrapeListener;
+
     private static final int DEFAULT_NUMWANT = -1;
-    private static final int PEER_LENGTH = 6;
 
-    private final DatagramChannel channel;
+    //requests go out through the shared engine socket, replies come back by transaction id
+    private final UdpTrackerEngine engine;
+    private final UdpTracker tracker;
 
 
     public UdpTrackerClient(String announceUrl, byte[] peerId, byte[] infoHash, long size) throws IOException, UnresolvedAddressException {
@@ -69,140 +64,234 @@ public class UdpTrackerClient {
         this.infoHash = infoHash;
         this.left = size;
 
-        //configure the channel
-        channel = DatagramChannel.open();
-        channel.bind(null);
-        channel.configureBlocking(false);
-        channel.connect(parseUdpAnnounceUrl(announceUrl));
+        engine = UdpTrackerEngine.getInstance();
+        tracker = engine.tracker(announceUrl);
+    }
+
+    @Override
+    public UdpTracker tracker() {
+        return tracker;
+    }
+
+    @Override
+    public byte[] infoHash() {
+        return infoHash;
+    }
+
+    @Override
+    public Object trackerKey() {
+        return tracker;
+    }
+
+    @Override
+    public String announceUrl() {
+        return announceUrl;
+    }
 
-        //register with selector
-        SelectorManager selectorManager = SelectorManager.getInstance();
-        selectorManager.registerConnection(channel, this);
+    @Override
+    public synchronized Status status() {
+        return status;
+    }
 
-        //set order
-        connectRequestBuffer.order(ByteOrder.BIG_ENDIAN);
-        announceRequestBuffer.order(ByteOrder.BIG_ENDIAN);
-        receiveBuffer.order(ByteOrder.BIG_ENDIAN);
+    @Override
+    public synchronized void setAnnounceListener(AnnounceListener listener) {
+        this.listener = listener;
     }
 
+    /**
+     * Receives this torrent's counts from the batched scrapes of the tracker.
+     */
+    public synchronized void setScrapeListener(ScrapeListener scrapeListener) {
+        this.scrapeListener = scrapeListener;
+    }
 
+
+    /**
+     * Announces STARTED, then the AnnounceScheduler re-announces at the tracker's interval.
+     */
     public void startAnnouncing() throws IOException {
-        sendConnectRequest();
+        AnnounceScheduler.getInstance().start(this);
+    }
+
+    @Override
+    public synchronized void announce(TrackerEvent event) throws IOException {
+        //a new announce supersedes one still waiting for its reply
+        if (announceRequestBuffer != null) {
+            cancelRetransmission();
+            engine.cancelTransaction(transactionId);
+            releaseAnnounceBuffer();
+        }
+        if (event == TrackerEvent.COMPLETED) {
+            left = 0;
+        }
+        this.event = event;
+        attempt = 0;
+        cancelled = false;
+        requestConnection();
+    }
+
+    @Override
+    public synchronized void cancel() {
+        cancelled = true;
+        if (announceRequestBuffer != null) {
+            cancelRetransmission();
+            engine.cancelTransaction(transactionId);
+            releaseAnnounceBuffer();
+        }
+    }
+
+    //the engine reuses the tracker's connection id while it is valid, otherwise does the connect handshake;
+    //an announce made while waiting for it is sent by the pending callback
+    private void requestConnection() throws IOException {
+        if (connecting) {
+            return;
+        }
+        connecting = true;
+        try {
+            engine.requestConnection(tracker, this);
+        } catch (IOException | RuntimeException e) {
+            connecting = false;
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized void connected(long connectionId) {
+        if (!connecting) {
+            return; //one callback per request
+        }
+        connecting = false;
+        if (cancelled) {
+            return;
+        }
+        this.connectionId = connectionId;
+        try {
+            if (!isScraped) {
+                isScraped = true;
+                engine.scrapeScheduler().scrape(tracker, infoHash, this);
+            }
+            sendAnnounceRequest(event);
+        } catch (IOException e) {
+            releaseAnnounceBuffer();
+            status = Status.OFFLINE;
+            System.out.println("Failed to announce to " + announceUrl + ": " + e.getMessage());
+            scheduleRetry();
+        }
+    }
+
+    @Override
+    public synchronized void connectionFailed(Status status) {
+        if (!connecting) {
+            return;
+        }
+        connecting = false;
+        if (cancelled) {
+            return;
+        }
+        releaseAnnounceBuffer();
+        this.status = status;
+        System.out.println("Could not connect to " + announceUrl + ": " + status);
+        scheduleRetry();
+    }
+
+    @Override
+    public void scraped(byte[] infoHash, int seeders, int completed, int leechers) {
+        ScrapeListener notify;
+        synchronized (this) {
+            notify = scrapeListener;
+        }
+        if (notify != null) {
+            notify.scraped(infoHash, seeders, completed, leechers);
+        }
     }
 
-    public void handleResponse() throws IOException {
-        receiveBuffer.clear();
-        channel.receive(receiveBuffer);
-        receiveBuffer.flip();
+    @Override
+    public void scrapeFailed(byte[] infoHash, Status status) {
+        System.out.println("Scrape failed for " + announceUrl + ": " + status);
+        ScrapeListener notify;
+        synchronized (this) {
+            notify = scrapeListener;
+        }
+        if (notify != null) {
+            notify.scrapeFailed(infoHash, status);
+        }
+    }
 
+    @Override
+    public synchronized void handleResponse(ByteBuffer receiveBuffer) throws IOException {
         int size = receiveBuffer.remaining();
         int action = receiveBuffer.getInt();
         int transactionId = receiveBuffer.getInt();
+        if (transactionId != this.transactionId || cancelled) {
+            return;
+        }
 
         System.out.println("Action: " + switch (action) {
-            case ACTION_CONNECT -> "CONNECT";
             case ACTION_ANNOUNCE -> "ANNOUNCE";
-            case ACTION_SCRAPE -> "SCRAPE";
             case ACTION_ERROR -> "ERROR";
             default -> "Error Action: " + action;
         });
 
-        switch (action) {
-            case ACTION_CONNECT -> {
-                System.out.println("Received CONNECT request");
-                if (size < CONNECT_RESPONSE_BUFFER_SIZE) {
-                    throw new TrackerException("Connect Request: Received buffer is smaller than 16 bytes");
-                }
-                //check transactionId
-                if (transactionId != this.transactionId) {
-                    throw new TrackerException("Connect Request: Received different transactionId");
-                }
-                //get connectionId
-                connectionId = receiveBuffer.getLong();
+        //the engine has dropped the transaction, a reply that cannot be used ends the announce too
+        boolean wellFormed = switch (action) {
+            case ACTION_ANNOUNCE -> size >= MINIMUM_ANNOUNCE_RESPONSE_BUFFER_SIZE
+                    && (size - MINIMUM_ANNOUNCE_RESPONSE_BUFFER_SIZE) % PeerSet.COMPACT_PEER_LENGTH == 0;
+            case ACTION_ERROR -> size >= MINIMUM_ERROR_MESSAGE;
+            default -> false;
+        };
+        cancelRetransmission();
+        releaseAnnounceBuffer();
+        attempt = 0;
+        if (!wellFormed) {
+            status = Status.UNREGISTERED;
+            System.out.println("Malformed reply from " + announceUrl + ": action " + action + ", " + size + " bytes");
+            scheduleRetry();
+            return;
+        }
 
-                if (!isScraped) {
-                     sendScrapeRequest();
-                } else sendAnnounceRequest(TrackerEvent.STARTED);
-            }
+        switch (action) {
             case ACTION_ANNOUNCE -> {
                 System.out.println("Received announce response");
-                if (size < MINIMUM_ANNOUNCE_RESPONSE_BUFFER_SIZE) {
-                    throw new TrackerException("Announce Request: Received buffer is smaller than 20 bytes");
-                }
-                //check transactionId
-                if (transactionId != this.transactionId) {
-                    throw new TrackerException("Announce Request: Received different transactionId");
-                }
-
-                int interval = receiveBuffer.getInt(); //TODO assign to instance variable instead - PEER_SIZE = 6
+                status = Status.WORKING;
+                int interval = receiveBuffer.getInt();
                 int leechers = receiveBuffer.getInt();
                 int seeders = receiveBuffer.getInt();
                 extractPeers(receiveBuffer); //get data and store in 'peers'
+                //STARTED and COMPLETED are sent once, later announces are regular ones
+                if (event != TrackerEvent.STOPPED) {
+                    event = TrackerEvent.NONE;
+                    AnnounceScheduler.getInstance().announced(this, interval, 0);
+                }
+                if (listener != null) {
+                    listener.announced(this);
+                }
                 System.out.println("Interval: " + interval);
                 System.out.println("Leechers: " + leechers);
                 System.out.println("Seeders: " + seeders);
                 System.out.println("Peers: " +peers);
             }
-            case ACTION_SCRAPE -> {
-                System.out.println("Received scrape response");
-                if (size < MINIMUM_SCAPRE_RESPONSE_BUFFER_SIZE) {
-                    throw new TrackerException("Scrape Request: Received buffer is smaller than 20 bytes");
-                }
-                //check transactionId
-                if (transactionId != this.transactionId) {
-                    throw new TrackerException("Scrape Request: Received different transactionId");
-                }
-                int remainingBytes = receiveBuffer.remaining();
-                int numTorrents = remainingBytes / 12;
-
-                for (int i = 0; i < numTorrents; i++) {
-                    int seeders = receiveBuffer.getInt();
-                    int completed = receiveBuffer.getInt();
-                    int leechers = receiveBuffer.getInt();
-                    System.out.println("Seeders: " + seeders + " | Completed: " + completed + " | leechers: " + leechers );
-                }
-                isScraped = true;
-                sendAnnounceRequest(TrackerEvent.STARTED);
-            }
             case ACTION_ERROR -> {
-                if (size < MINIMUM_ERROR_MESSAGE) {
-                    throw new TrackerException("Error message: Received buffer is smaller than 8 bytes");
-                }
-                //check transactionId
-                if (transactionId != this.transactionId) {
-                    throw new TrackerException("Error message: Received different transactionId");
-                }
                 byte[] messageBytes = new byte[receiveBuffer.remaining()];
                 receiveBuffer.get(messageBytes);
                 String errorMessage = new String(messageBytes, StandardCharsets.UTF_8);
                 System.out.println("Receive Error: " + errorMessage);
+                status = Status.REFUSED;
+                scheduleRetry();
             }
-
         }
 
     }
 
-    private void sendConnectRequest() throws IOException {
-        System.out.println("Send CONNECT request");
-        //build connect request packet
-        connectRequestBuffer.clear();
-        connectRequestBuffer.putLong(MAGIC_CONSTANT); //magic constant
-        connectRequestBuffer.putInt(ACTION_CONNECT); // action = connect = 0
-        transactionId = RANDOM.nextInt();
-        connectRequestBuffer.putInt(transactionId);
-
-        //sending connect request
-        connectRequestBuffer.flip();
-        channel.write(connectRequestBuffer);
-    }
-
     private void sendAnnounceRequest( TrackerEvent event) throws IOException {
         //build announce request packet
         System.out.println("Send ANNOUNCE request");
+        if (announceRequestBuffer == null) {
+            announceRequestBuffer = engine.bufferPool().lease(ANNOUNCE_REQUEST_BUFFER_SIZE);
+        }
         announceRequestBuffer.clear();
         announceRequestBuffer.putLong(connectionId);
         announceRequestBuffer.putInt(ACTION_ANNOUNCE); //action = announce = 1
-        transactionId = RANDOM.nextInt();
+        transactionId = engine.newTransaction(this);
         announceRequestBuffer.putInt(transactionId);
         announceRequestBuffer.put(infoHash);
         announceRequestBuffer.put(peerId);
@@ -217,57 +306,86 @@ public class UdpTrackerClient {
 
         //sending announce request
         announceRequestBuffer.flip();
-        channel.write(announceRequestBuffer);
+        engine.send(announceRequestBuffer, tracker);
+        this.event = event;
+        scheduleRetransmission();
     }
 
-    private void sendScrapeRequest() throws IOException {
-        System.out.println("Send SCRAPE request");
-        System.out.println(infoHash.length);
-        scrapeRequestBuffer.clear();
-        scrapeRequestBuffer.putLong(connectionId);
-        scrapeRequestBuffer.putInt(ACTION_SCRAPE);
-        transactionId = RANDOM.nextInt();
-        scrapeRequestBuffer.putInt(transactionId);
-        scrapeRequestBuffer.put(infoHash);
-
-        scrapeRequestBuffer.flip();
-        channel.write(scrapeRequestBuffer);
+    private void scheduleRetransmission() throws IOException {
+        cancelRetransmission();
+        int generation = retransmissionGeneration;
+        retransmission = engine.schedule(UdpTrackerEngine.retransmitDelayMillis(attempt), () -> retransmit(generation));
     }
 
-    private void extractPeers(ByteBuffer responseAnnounceBuffer) {
-        int remainingBytes = responseAnnounceBuffer.remaining();
-        if (remainingBytes % PEER_LENGTH != 0) {
-            throw new TrackerException("Announce Request: Peer data length is not multiple of 6 bytes");
+    private void cancelRetransmission() {
+        retransmissionGeneration++;
+        if (retransmission != null) {
+            retransmission.cancel();
+            retransmission = null;
+        }
+    }
+
+    //runs on the selector thread when the outstanding request got no reply in time
+    private synchronized void retransmit(int generation) {
+        if (generation != retransmissionGeneration || announceRequestBuffer == null) {
+            return; //answered, superseded or cancelled meanwhile
         }
-        int numPeers = remainingBytes / PEER_LENGTH;
-
-        // Parse peers
-        for (int i = 0; i < numPeers; i++) {
-            // Read IP (4 bytes)
-            String ip = String.format("%d.%d.%d.%d",
-                    responseAnnounceBuffer.get() & 0xFF,
-                    responseAnnounceBuffer.get() & 0xFF,
-                    responseAnnounceBuffer.get() & 0xFF,
-                    responseAnnounceBuffer.get() & 0xFF);
-
-            // Read port (2 bytes)
-            int port = ((responseAnnounceBuffer.get() & 0xFF) << 8) |
-                    (responseAnnounceBuffer.get() & 0xFF);
-
-            peers.add(new Peer(ip, port));
+        retransmission = null;
+        attempt++;
+        if (attempt > UdpTrackerEngine.MAX_RETRANSMISSIONS) {
+            engine.cancelTransaction(transactionId);
+            releaseAnnounceBuffer();
+            status = Status.CONNECTION_TIME_OUT;
+            System.out.println("Tracker timed out: " + announceUrl);
+            scheduleRetry();
+            return;
+        }
+        try {
+            if (!tracker.hasConnectionId(System.currentTimeMillis())) {
+                //the connection id expired while waiting, a retransmission has to reconnect first
+                engine.cancelTransaction(transactionId);
+                requestConnection();
+            } else {
+                announceRequestBuffer.rewind();
+                engine.send(announceRequestBuffer, tracker);
+                scheduleRetransmission();
+            }
+        } catch (IOException e) {
+            engine.cancelTransaction(transactionId);
+            releaseAnnounceBuffer();
+            status = Status.OFFLINE;
+            System.out.println("Failed to retransmit to " + announceUrl + ": " + e.getMessage());
+            scheduleRetry();
+        }
+    }
+
+    private void scheduleRetry() {
+        if (listener != null) {
+            listener.announceFailed(this, status);
+        }
+        if (event == TrackerEvent.STOPPED || cancelled) {
+            return;
+        }
+        try {
+            AnnounceScheduler.getInstance().failed(this);
+        } catch (IOException e) {
+            System.out.println("Failed to schedule announce retry for " + announceUrl + ": " + e.getMessage());
         }
     }
 
-    private InetSocketAddress parseUdpAnnounceUrl(String announceUrl) {
-        //remove udp:// and /announce part
-        String cleanedUrl = announceUrl
-                .replace("udp://", "")
-                .replace("/announce", "");
+    private void releaseAnnounceBuffer() {
+        if (announceRequestBuffer != null) {
+            engine.bufferPool().release(announceRequestBuffer);
+            announceRequestBuffer = null;
+        }
+    }
 
-        String[] parts = cleanedUrl.split(":");
-        String host = parts[0];
-        int port = Integer.parseInt(parts[1]);
-        return new InetSocketAddress(host, port);
+    private void extractPeers(ByteBuffer responseAnnounceBuffer) {
+        //packed straight from the buffer, the store dedupes them with what other trackers reported
+        peers.clear();
+        peers.addCompact(responseAnnounceBuffer, responseAnnounceBuffer.position(), responseAnnounceBuffer.remaining());
+        responseAnnounceBuffer.position(responseAnnounceBuffer.limit());
+        PeerStore.forTorrent(infoHash).addAll(peers, announceUrl);
     }
 
 }
@@ -0,0 +1,270 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sends every UDP tracker request through a few shared DatagramChannels instead of one socket per
+ * client. Replies are routed back to the waiting {@link UdpResponseHandler} by transaction ID.
+ * The connect handshake is done once per tracker and shared by everyone waiting on it.
+ */
+public class UdpTrackerEngine implements ChannelHandler {
+    private static final int DEFAULT_CHANNEL_COUNT = 1;
+    private static final int MINIMUM_RESPONSE_SIZE = 8; //action + transaction id
+
+    static final long MAGIC_CONSTANT = 0x41727101980L;
+    static final int ACTION_CONNECT = 0;
+    static final int ACTION_ANNOUNCE = 1;
+    static final int ACTION_SCRAPE = 2;
+    static final int ACTION_ERROR = 3;
+    private static final int CONNECT_REQUEST_SIZE = 16;
+    private static final int CONNECT_RESPONSE_SIZE = 16;
+
+    //BEP 15 retransmission: wait 15 * 2^n seconds, n = 0..8, then give up
+    private static final long RETRANSMIT_BASE_MILLIS = 15_000;
+    static final int MAX_RETRANSMISSIONS = 8;
+
+    private static UdpTrackerEngine instance;
+
+    private final DatagramChannel[] channels;
+    private final BufferPool bufferPool = BufferPool.getInstance();
+    //transaction id -> handler waiting for the reply, guarded by 'this'
+    private final IntObjectMap<UdpResponseHandler> transactions = new IntObjectMap<>(1024);
+    private final Map<String, UdpTracker> trackers = new ConcurrentHashMap<>();
+    private final Random random = new Random();
+    private final ScrapeScheduler scrapeScheduler = new ScrapeScheduler(this);
+
+    public interface ConnectionCallback {
+        void connected(long connectionId);
+
+        void connectionFailed(Status status);
+    }
+
+    public UdpTrackerEngine(int channelCount) throws IOException {
+        channels = new DatagramChannel[channelCount];
+        SelectorManager selectorManager = SelectorManager.getInstance();
+        for (int i = 0; i < channelCount; i++) {
+            channels[i] = DatagramChannel.open();
+            channels[i].bind(null);
+            channels[i].configureBlocking(false);
+            selectorManager.registerConnection(channels[i], this);
+        }
+    }
+
+    public static synchronized UdpTrackerEngine getInstance() throws IOException {
+        if (instance == null) {
+            instance = new UdpTrackerEngine(DEFAULT_CHANNEL_COUNT);
+        }
+        return instance;
+    }
+
+    /**
+     * Shared state for the tracker of an announce URL, resolved once.
+     */
+    public UdpTracker tracker(String announceUrl) throws UnresolvedAddressException {
+        return trackers.computeIfAbsent(announceUrl, url -> {
+            InetSocketAddress address = UdpTracker.parseAnnounceUrl(url);
+            if (address.isUnresolved()) {
+                throw new UnresolvedAddressException();
+            }
+            return new UdpTracker(address, Math.floorMod(address.hashCode(), channels.length));
+        });
+    }
+
+    public ScrapeScheduler scrapeScheduler() {
+        return scrapeScheduler;
+    }
+
+    /**
+     * Allocates a transaction ID that routes the reply to the handler.
+     */
+    public synchronized int newTransaction(UdpResponseHandler handler) {
+        int transactionId;
+        do {
+            transactionId = random.nextInt();
+        } while (transactions.containsKey(transactionId));
+        transactions.put(transactionId, handler);
+        return transactionId;
+    }
+
+    public synchronized void cancelTransaction(int transactionId) {
+        transactions.remove(transactionId);
+    }
+
+    public TimerWheel.Timeout schedule(long delayMillis, Runnable task) throws IOException {
+        return SelectorManager.getInstance().schedule(delayMillis, task);
+    }
+
+    static long retransmitDelayMillis(int attempt) {
+        return RETRANSMIT_BASE_MILLIS << attempt;
+    }
+
+    /**
+     * Calls back with the tracker's connection id, doing the connect handshake only if the cached
+     * one has expired. Concurrent requests for the same tracker share a single handshake.
+     */
+    public void requestConnection(UdpTracker tracker, ConnectionCallback callback) throws IOException {
+        boolean startHandshake;
+        long connectionId = 0;
+        boolean connected = false;
+        synchronized (tracker) {
+            if (tracker.hasConnectionId(System.currentTimeMillis())) {
+                connectionId = tracker.connectionId();
+                connected = true;
+                startHandshake = false;
+            } else {
+                startHandshake = tracker.addConnectionWaiter(callback);
+            }
+        }
+        if (connected) {
+            callback.connected(connectionId);
+        } else if (startHandshake) {
+            new Handshake(tracker).start();
+        }
+    }
+
+    BufferPool bufferPool() {
+        return bufferPool;
+    }
+
+    public void send(ByteBuffer packet, UdpTracker tracker) throws IOException {
+        channels[tracker.channelIndex].send(packet, tracker.address);
+    }
+
+    @Override
+    public void handleReady(SelectionKey key) throws IOException {
+        DatagramChannel channel = (DatagramChannel) key.channel();
+        //channels may be served by different selector threads, each receives into its thread's buffer
+        ByteBuffer receiveBuffer = bufferPool.receiveBuffer();
+        SocketAddress sender;
+        while ((sender = channel.receive(receiveBuffer.clear())) != null) {
+            receiveBuffer.flip();
+            if (receiveBuffer.remaining() < MINIMUM_RESPONSE_SIZE) {
+                continue;
+            }
+            int transactionId = receiveBuffer.getInt(4);
+            UdpResponseHandler handler;
+            synchronized (this) {
+                handler = transactions.get(transactionId);
+                //a reply is only accepted from the tracker the request was sent to
+                if (handler == null || !handler.tracker().address.equals(sender)) {
+                    continue;
+                }
+                transactions.remove(transactionId);
+            }
+            try {
+                handler.handleResponse(receiveBuffer);
+            } catch (IOException | RuntimeException e) {
+                //a bad reply from one tracker must not drop the datagrams queued behind it
+                System.err.println("Failed to handle reply from " + sender + ": " + e);
+            }
+        }
+    }
+
+    //the socket is shared by every tracker, a receive error is logged but never closes it
+    @Override
+    public void handleFailure(SelectionKey key, Exception e) {
+        System.err.println("UDP tracker channel error: " + e);
+    }
+
+    //connect request for one tracker, retransmitted until it is answered or times out
+    private class Handshake implements UdpResponseHandler {
+        private final UdpTracker tracker;
+        private final ByteBuffer request = bufferPool.lease(CONNECT_REQUEST_SIZE);
+        private int transactionId;
+        private int attempt;
+        private TimerWheel.Timeout retransmission;
+        private boolean done;
+
+        Handshake(UdpTracker tracker) {
+            this.tracker = tracker;
+        }
+
+        @Override
+        public UdpTracker tracker() {
+            return tracker;
+        }
+
+        synchronized void start() {
+            transactionId = newTransaction(this);
+            request.putLong(MAGIC_CONSTANT);
+            request.putInt(ACTION_CONNECT);
+            request.putInt(transactionId);
+            request.flip();
+            transmit();
+        }
+
+        private void transmit() {
+            try {
+                request.rewind();
+                send(request, tracker);
+                retransmission = schedule(retransmitDelayMillis(attempt), this::timedOut);
+            } catch (IOException e) {
+                cancelTransaction(transactionId);
+                fail(Status.OFFLINE);
+            }
+        }
+
+        private synchronized void timedOut() {
+            if (done) {
+                return;
+            }
+            if (++attempt > MAX_RETRANSMISSIONS) {
+                cancelTransaction(transactionId);
+                fail(Status.CONNECTION_TIME_OUT);
+            } else {
+                transmit();
+            }
+        }
+
+        @Override
+        public synchronized void handleResponse(ByteBuffer response) {
+            if (done) {
+                return;
+            }
+            if (retransmission != null) {
+                retransmission.cancel();
+            }
+            int action = response.getInt(response.position());
+            if (action != ACTION_CONNECT || response.remaining() < CONNECT_RESPONSE_SIZE) {
+                fail(action == ACTION_ERROR ? Status.REFUSED : Status.UNREGISTERED);
+                return;
+            }
+            long connectionId = response.getLong(response.position() + 8);
+            finish();
+            List<ConnectionCallback> waiters;
+            synchronized (tracker) {
+                tracker.connected(connectionId, System.currentTimeMillis());
+                waiters = tracker.takeConnectionWaiters();
+            }
+            for (ConnectionCallback waiter : waiters) {
+                waiter.connected(connectionId);
+            }
+        }
+
+        private void fail(Status status) {
+            finish();
+            List<ConnectionCallback> waiters;
+            synchronized (tracker) {
+                waiters = tracker.takeConnectionWaiters();
+            }
+            for (ConnectionCallback waiter : waiters) {
+                waiter.connectionFailed(status);
+            }
+        }
+
+        private void finish() {
+            if (!done) {
+                done = true;
+                bufferPool.release(request);
+            }
+        }
+    }
+}
@@ -0,0 +1,13 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Results of a {@link PieceVerifier}, called on its worker threads.
+ */
+public interface VerificationListener {
+    /**
+     * The piece matched its hash. The data is only valid during the call, write it out.
+     */
+    void pieceVerified(int pieceIndex, ByteBuffer data);
+
+    void pieceRejected(int pieceIndex);
+}
@@ -0,0 +1,138 @@
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Peer connection running blocking I/O on virtual threads: a reader that reads one message at a
+ * time into a buffer leased for just that message, and a writer draining the send queue. Writing
+ * on its own thread keeps a reader blocked on a full socket from deadlocking against a peer doing
+ * the same.
+ */
+public class VirtualThreadPeerConnection extends PeerConnection {
+    private volatile SocketChannel channel; //opened by the reader for outgoing connections
+    private volatile Thread writer;
+    private final LinkedBlockingQueue<ByteBuffer> writeQueue = new LinkedBlockingQueue<>();
+
+    VirtualThreadPeerConnection(PeerWireEngine engine, SocketChannel channel, Peer peer, PeerWireEngine.Torrent torrent) {
+        super(engine, peer, torrent);
+        this.channel = channel;
+    }
+
+    void start() {
+        Thread.ofVirtual().name("peer-" + peer.ip() + ":" + peer.port()).start(this::read);
+    }
+
+    @Override
+    public int queuedMessages() {
+        return writeQueue.size();
+    }
+
+    private void read() {
+        ByteBuffer header = bufferPool.lease(HANDSHAKE_LENGTH);
+        try {
+            if (outbound) {
+                SocketChannel opened = SocketChannel.open();
+                channel = opened;
+                if (state == State.CLOSED) {
+                    opened.close(); //timed out before the socket existed
+                    return;
+                }
+                opened.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                opened.connect(PeerWireEngine.address(peer));
+                startWriter();
+                connected();
+            } else {
+                startWriter();
+            }
+            readFully(header);
+            handleHandshake(header.flip());
+            while (state != State.CLOSED) {
+                readFully(header.clear().limit(4));
+                int length = checkLength(header.getInt(0));
+                if (length == 0) {
+                    continue; //keep-alive
+                }
+                ByteBuffer message = bufferPool.lease(length);
+                try {
+                    readFully(message);
+                    handleMessage(message, 0, length);
+                } finally {
+                    bufferPool.release(message);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            close(e); //no-op when the failure is our own close
+        } finally {
+            bufferPool.release(header);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new PeerWireException("Connection closed by peer");
+            }
+        }
+        lastReceived = System.currentTimeMillis();
+    }
+
+    private void startWriter() {
+        writer = Thread.ofVirtual().name("peer-writer-" + peer.ip() + ":" + peer.port()).start(this::writeQueued);
+        if (state == State.CLOSED) {
+            writer.interrupt();
+        }
+    }
+
+    private void writeQueued() {
+        try {
+            while (state != State.CLOSED) {
+                ByteBuffer message = writeQueue.take();
+                try {
+                    while (message.hasRemaining()) {
+                        channel.write(message);
+                    }
+                } finally {
+                    bufferPool.release(message);
+                }
+                lastSent = System.currentTimeMillis();
+            }
+        } catch (InterruptedException e) {
+            //closed
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    /**
+     * A message racing with close may miss the drain, it is then left to the GC.
+     */
+    @Override
+    void write(ByteBuffer message) {
+        if (state == State.CLOSED) {
+            bufferPool.release(message);
+            return;
+        }
+        writeQueue.add(message);
+    }
+
+    @Override
+    void closeChannel() {
+        SocketChannel current = channel;
+        if (current != null) {
+            try {
+                current.close(); //wakes the reader blocked in read or connect
+            } catch (IOException ignored) {
+            }
+        }
+        Thread currentWriter = writer;
+        if (currentWriter != null) {
+            currentWriter.interrupt();
+        }
+        ByteBuffer message;
+        while ((message = writeQueue.poll()) != null) {
+            bufferPool.release(message);
+        }
+    }
+}
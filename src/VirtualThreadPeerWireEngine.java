@@ -0,0 +1,78 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Blocking peer-wire engine: every connection reads and writes on its own pair of virtual threads,
+ * so the protocol code is plain sequential code. Timeouts and keep-alives still run on the
+ * {@link SelectorManager} timers, closing a connection interrupts its blocked threads.
+ */
+public class VirtualThreadPeerWireEngine extends PeerWireEngine {
+    private ServerSocketChannel serverChannel;
+
+    public VirtualThreadPeerWireEngine(byte[] peerId) {
+        super(peerId);
+    }
+
+    @Override
+    public PeerIoMode mode() {
+        return PeerIoMode.VIRTUAL_THREADS;
+    }
+
+    @Override
+    public PeerConnection connect(byte[] infoHash, Peer peer) throws IOException {
+        VirtualThreadPeerConnection connection = new VirtualThreadPeerConnection(this, null, peer, registered(infoHash));
+        opened();
+        connection.startTimer(CONNECT_TIMEOUT_MILLIS);
+        connection.start();
+        return connection;
+    }
+
+    @Override
+    public synchronized void listen(int port) throws IOException {
+        if (serverChannel != null) {
+            throw new PeerWireException("Already listening on " + serverChannel.getLocalAddress());
+        }
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress(port), SelectorPeerWireEngine.ACCEPT_BACKLOG);
+        serverChannel = channel;
+        Thread.ofVirtual().name("peer-accept-" + port).start(() -> accept(channel));
+    }
+
+    @Override
+    public synchronized int localPort() throws IOException {
+        return serverChannel == null ? -1 : ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    }
+
+    private void accept(ServerSocketChannel server) {
+        while (server.isOpen()) {
+            SocketChannel channel;
+            try {
+                channel = server.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("Failed to accept peer connection: " + e);
+                continue;
+            }
+            try {
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+                VirtualThreadPeerConnection connection = new VirtualThreadPeerConnection(this, channel, new Peer(remote.getAddress().getHostAddress(), remote.getPort()), null);
+                opened();
+                connection.startTimer(PeerConnection.HANDSHAKE_TIMEOUT_MILLIS);
+                connection.start();
+            } catch (IOException | RuntimeException e) {
+                //IPv6 peers are not supported by Peer yet
+                System.err.println("Rejected incoming connection: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}